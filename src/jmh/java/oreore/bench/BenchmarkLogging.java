@@ -0,0 +1,19 @@
+package oreore.bench;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// The pool and the transaction log at INFO; printing to the console would
+// swamp what is being measured, so benchmarks raise the level by default.
+final class BenchmarkLogging {
+
+    // LogManager only holds loggers weakly
+    private static final Logger logger = Logger.getLogger("oreore");
+
+    private BenchmarkLogging() {
+    }
+
+    public static void setLevel(String level) {
+        logger.setLevel(Level.parse(level));
+    }
+}
@@ -0,0 +1,91 @@
+package oreore.bench;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import oreore.dbcp.ConnectionPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionPoolBenchmark {
+
+    @Param({ "0", "8" })
+    public int minPoolSize;
+
+    @Param({ "8", "64" })
+    public int maxPoolSize;
+
+    @Param({ "false", "true" })
+    public boolean threadAffinity;
+
+    @Param({ "1", "4" })
+    public int stripes;
+
+    @Param({ "WARNING" })
+    public String logLevel;
+
+    private ConnectionPool cp;
+
+    @Setup
+    public void setUp() throws SQLException {
+        BenchmarkLogging.setLevel(logLevel);
+        cp = new ConnectionPool(stripes);
+        cp.setDataSource(new InMemoryDataSource());
+        cp.setMaxPoolSize(maxPoolSize);
+        cp.setMinPoolSize(minPoolSize);
+        cp.setThreadAffinity(threadAffinity);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        cp.close();
+    }
+
+    private Connection checkOutCheckIn() throws SQLException {
+        Connection con = cp.checkOut();
+        cp.checkIn(con);
+        return con;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Connection checkOutCheckIn_1() throws SQLException {
+        return checkOutCheckIn();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Connection checkOutCheckIn_4() throws SQLException {
+        return checkOutCheckIn();
+    }
+
+    // more threads than maxPoolSize=8 exercises opening and closing
+    @Benchmark
+    @Threads(16)
+    public Connection checkOutCheckIn_16() throws SQLException {
+        return checkOutCheckIn();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Connection checkOutCheckIn_max() throws SQLException {
+        return checkOutCheckIn();
+    }
+}
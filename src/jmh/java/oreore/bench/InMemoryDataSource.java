@@ -0,0 +1,111 @@
+package oreore.bench;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+// Stand-in for a driver: connections cost nothing to open and answer every
+// call locally, so a benchmark measures the pool rather than a database.
+public class InMemoryDataSource implements DataSource {
+
+    private static final class InMemoryConnection implements InvocationHandler {
+
+        private boolean closed;
+        private boolean autoCommit = true;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            switch (method.getName()) {
+            case "isClosed":
+                return closed;
+            case "close":
+                closed = true;
+                return null;
+            case "isValid":
+                return closed == false;
+            case "getAutoCommit":
+                return autoCommit;
+            case "getWarnings":
+                return null;
+            case "setAutoCommit":
+                autoCommit = (boolean) args[0];
+                return null;
+            case "commit":
+            case "rollback":
+                if (autoCommit) {
+                    throw new SQLException(
+                            "Connection must not be auto commit mode");
+                }
+                return null;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "InMemoryConnection@"
+                        + Integer.toHexString(System.identityHashCode(proxy));
+            default:
+                throw new SQLFeatureNotSupportedException(method.getName());
+            }
+        }
+    }
+
+    private static final ClassLoader loader = InMemoryDataSource.class
+            .getClassLoader();
+    private static final Class<?>[] interfaces = { Connection.class };
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return (Connection) Proxy.newProxyInstance(loader, interfaces,
+                new InMemoryConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password)
+            throws SQLException {
+        return getConnection();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException(iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+}
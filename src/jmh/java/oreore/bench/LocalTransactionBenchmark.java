@@ -0,0 +1,105 @@
+package oreore.bench;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import oreore.dbcp.ConnectionPool;
+import oreore.dbcp.PoolingDataSource;
+import oreore.dbcp.PoolingDataSourceFactory;
+import oreore.tx.LocalTransaction;
+import oreore.tx.LocalTransactionalDataSource;
+import oreore.tx.LocalTransactionalDataSourceFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Sample mode reports latency percentiles per transaction; with the default
+// -prof gc, gc.alloc.rate.norm is the bytes allocated per transaction.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalTransactionBenchmark {
+
+    // "direct" opens a physical connection per transaction, "pooled" stacks
+    // LocalTransactionalDataSourceFactory over PoolingDataSourceFactory
+    @Param({ "direct", "pooled" })
+    public String stack;
+
+    @Param({ "10" })
+    public int calls;
+
+    @Param({ "WARNING" })
+    public String logLevel;
+
+    private PoolingDataSource pool;
+    private LocalTransactionalDataSource ds;
+    private LocalTransaction tx;
+
+    @Setup
+    public void setUp() throws SQLException {
+        BenchmarkLogging.setLevel(logLevel);
+        DataSource target = new InMemoryDataSource();
+        if (stack.equals("pooled")) {
+            ConnectionPool cp = new ConnectionPool();
+            cp.setDataSource(target);
+            pool = new PoolingDataSourceFactory().create(cp);
+            target = pool;
+        }
+        ds = new LocalTransactionalDataSourceFactory().create(target);
+        tx = ds.getTransaction();
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Benchmark
+    public void empty() throws SQLException {
+        tx.begin();
+        tx.commit();
+    }
+
+    @Benchmark
+    public void delegatedCalls(Blackhole bh) throws SQLException {
+        tx.begin();
+        Connection con = tx.getConnection();
+        // reaches the driver, unlike getAutoCommit on a pooled connection
+        for (int i = 0; i < calls; i++) {
+            bh.consume(con.getWarnings());
+        }
+        tx.commit();
+    }
+
+    // code that only sees the DataSource looks the connection up each time
+    @Benchmark
+    public void nestedAccess(Blackhole bh) throws SQLException {
+        tx.begin();
+        for (int i = 0; i < calls; i++) {
+            bh.consume(ds.getConnection().getWarnings());
+        }
+        tx.commit();
+    }
+
+    @Benchmark
+    public void rollback() throws SQLException {
+        tx.begin();
+        tx.rollback();
+    }
+}
@@ -0,0 +1,97 @@
+package oreore.bench;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.util.concurrent.TimeUnit;
+import oreore.dbcp.ConnectionPool;
+import oreore.dbcp.PoolingDataSource;
+import oreore.dbcp.PoolingDataSourceFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolingDataSourceBenchmark {
+
+    // a logical connection held for the whole iteration
+    @State(Scope.Thread)
+    public static class Held {
+
+        private Connection pooled;
+        private Connection physical;
+
+        @Setup(Level.Iteration)
+        public void setUp(PoolingDataSourceBenchmark benchmark)
+                throws SQLException {
+            pooled = benchmark.ds.getConnection();
+            physical = benchmark.physical;
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws SQLException {
+            pooled.close();
+        }
+    }
+
+    @Param({ "0", "16" })
+    public int statementCacheSize;
+
+    @Param({ "WARNING" })
+    public String logLevel;
+
+    private PoolingDataSource ds;
+    private Connection physical;
+
+    @Setup
+    public void setUp() throws SQLException {
+        BenchmarkLogging.setLevel(logLevel);
+        ConnectionPool cp = new ConnectionPool();
+        cp.setDataSource(new InMemoryDataSource());
+        PoolingDataSourceFactory factory = new PoolingDataSourceFactory();
+        factory.setStatementCacheSize(statementCacheSize);
+        ds = factory.create(cp);
+        physical = new InMemoryDataSource().getConnection();
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        ds.close();
+        physical.close();
+    }
+
+    @Benchmark
+    public Connection getConnectionClose() throws SQLException {
+        Connection con = ds.getConnection();
+        con.close();
+        return con;
+    }
+
+    // getWarnings, as the pooled connection answers getAutoCommit and the
+    // like from its session cache without reaching the driver
+    @Benchmark
+    public SQLWarning delegatedCall(Held held) throws SQLException {
+        return held.pooled.getWarnings();
+    }
+
+    // the same call on the physical connection, without the pooled wrapper
+    @Benchmark
+    public SQLWarning delegatedCall_baseline(Held held) throws SQLException {
+        return held.physical.getWarnings();
+    }
+}
@@ -0,0 +1,90 @@
+package oreore.dbcp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Guards connection creation. After threshold consecutive connect failures
+// the circuit opens and connects fail at once for the cool-down; then a
+// single connect goes through as a probe and its outcome closes or reopens
+// the circuit. Lock-free, as it sits on the check-out path of an empty pool.
+final class CircuitBreaker {
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    // the probe is in flight
+    private static final int HALF_OPEN = 2;
+
+    private static final Logger logger = Logger.getLogger(
+            PoolingDataSource.class.getName(), "oreore");
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+    // written before the state moves to OPEN
+    private volatile long openedAt;
+    private volatile int threshold = Integer.MAX_VALUE;
+    private volatile long coolDown = 5000;
+
+    // false to fail the connect without trying
+    public boolean allow() {
+        int state = this.state.get();
+        if (state == CLOSED) {
+            return true;
+        }
+        if (state == HALF_OPEN
+                || System.nanoTime() - openedAt < TimeUnit.MILLISECONDS
+                        .toNanos(coolDown)) {
+            return false;
+        }
+        return this.state.compareAndSet(OPEN, HALF_OPEN);
+    }
+
+    public void succeeded() {
+        failures.set(0);
+        if (state.getAndSet(CLOSED) != CLOSED
+                && logger.isLoggable(Level.INFO)) {
+            logger.log(Level.INFO, "dbcp.circuit.closed");
+        }
+    }
+
+    public void failed() {
+        int failures = this.failures.incrementAndGet();
+        openedAt = System.nanoTime();
+        if (state.compareAndSet(HALF_OPEN, OPEN)
+                || (failures >= threshold && state.compareAndSet(CLOSED,
+                        OPEN))) {
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "dbcp.circuit.opened",
+                        new Object[] { failures, coolDown });
+            }
+        }
+    }
+
+    public void reset() {
+        failures.set(0);
+        state.set(CLOSED);
+    }
+
+    public boolean isOpen() {
+        return state.get() != CLOSED;
+    }
+
+    public void setThreshold(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public void setCoolDown(long coolDown) {
+        this.coolDown = coolDown;
+    }
+
+    public long getCoolDown() {
+        return coolDown;
+    }
+}
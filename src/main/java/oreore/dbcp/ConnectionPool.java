@@ -2,231 +2,2062 @@ package oreore.dbcp;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.LinkedList;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import javax.sql.DataSource;
 
 public class ConnectionPool implements AutoCloseable {
 
-    private final class Pooled implements Callable<Void> {
+    final class Pooled {
+
+        private static final int IDLE = 0;
+        private static final int IN_USE = 1;
+        private static final int REMOVED = 2;
+        // claimed by checkIn, so that leak reclaim cannot take it meanwhile
+        private static final int RETURNING = 3;
 
         private final Connection con;
-        private final ScheduledFuture<Void> future;
+        private final DataSource source;
+        private final AtomicInteger state = new AtomicInteger(IN_USE);
+        // the stripe whose idleSize counts this entry; written before
+        // idle() publishes it, so a scan reads it after the state
+        private Stripe stripe;
+        private volatile long lastAccess;
+        // zero for connections adopted by checkIn
+        private volatile long borrowedAt;
+        // leak detection only; written before borrowedAt is published
+        private volatile Thread borrower;
+        private volatile Throwable borrowTrace;
+        private volatile boolean leakReported;
+        // connections discarded for failing validation during the check-out
+        // that lent this one
+        private volatile int failedValidations;
+        private volatile StatementCache statementCache;
+        private final SessionState sessionState = new SessionState();
+        private final long createdAt = System.nanoTime();
+        // where in the jitter range this connection's lifetime ends
+        private final double lifetimeJitter = ThreadLocalRandom.current()
+                .nextDouble();
 
-        public Pooled(Connection con) {
+        public Pooled(Connection con, DataSource source) {
             this.con = con;
-            this.future = executor.schedule(this, timeout,
-                    TimeUnit.MILLISECONDS);
+            this.source = source;
         }
 
-        public Connection getConnection() {
-            future.cancel(false);
+        Connection getConnection() {
             return con;
         }
 
+        SessionState getSessionState() {
+            return sessionState;
+        }
+
+        // true once the lease has ended without the borrower, as when leak
+        // detection reclaimed the connection
+        boolean isRemoved() {
+            return state.get() == REMOVED;
+        }
+
+        int getFailedValidations() {
+            return failedValidations;
+        }
+
+        // survives check-in and check-out; closed with the physical connection
+        StatementCache getStatementCache(int maxSize) {
+            StatementCache cache = statementCache;
+            if (cache == null || cache.getMaxSize() != maxSize) {
+                if (cache != null) {
+                    closeQuietly(cache);
+                }
+                cache = new StatementCache(maxSize);
+                statementCache = cache;
+            }
+            return cache;
+        }
+
+        public void idle() {
+            lastAccess = System.nanoTime();
+            state.set(IDLE);
+        }
+
+        public boolean isIdle() {
+            return state.get() == IDLE;
+        }
+
+        // the plain read spares scans a failed CAS on entries in use
+        public boolean take() {
+            if (state.get() == IDLE && state.compareAndSet(IDLE, IN_USE)) {
+                stripe.idleSize.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean remove() {
+            if (state.compareAndSet(IDLE, REMOVED)) {
+                stripe.idleSize.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // When and where a check-out was asked for. Recorded on the calling
+    // thread, as an async check-out is lent on asyncExecutor.
+    private static final class Request {
+
+        private final long start = System.nanoTime();
+        private final Thread borrower = Thread.currentThread();
+        // sampled for leak detection
+        private final Throwable trace;
+        // by the one thread at a time that validates for this request
+        private int failedValidations;
+
+        public Request(Throwable trace) {
+            this.trace = trace;
+        }
+    }
+
+    // A share of the idle connections. Each thread prefers the entries of
+    // its home stripe, so with several stripes borrowers mostly touch
+    // different entries and counters. The stripe count is fixed, but the
+    // shares follow minPoolSize and maxPoolSize.
+    private static final class Stripe {
+
+        private final AtomicInteger idleSize = new AtomicInteger();
+        // bumped after each entry is published idle, so that a scan can
+        // tell whether it may have passed one
+        private final AtomicInteger offers = new AtomicInteger();
+        // slots in idleSize reserved for connections still being opened in
+        // the background, which are not reported as pooled
+        private final AtomicInteger opening = new AtomicInteger();
+        private volatile int minPoolSize;
+        private volatile int maxPoolSize;
+    }
+
+    // One periodic task evicts every connection idle longer than timeout or
+    // past its lifetime, so checkIn only records a timestamp.
+    private final class Sweeper implements Runnable {
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            long timeout = TimeUnit.MILLISECONDS
+                    .toNanos(ConnectionPool.this.timeout);
+            for (Pooled pooled : entries) {
+                if (pooled.isIdle() == false) {
+                    continue;
+                }
+                boolean expired = expired(pooled, now);
+                if ((expired || now - pooled.lastAccess >= timeout)
+                        && pooled.remove()) {
+                    // the filler replaces it if minPoolSize asks for it
+                    if (expired) {
+                        metrics.retirements.increment();
+                    } else {
+                        metrics.evictions.increment();
+                    }
+                    // must not throw, or the periodic task would stop
+                    discardQuietly(pooled);
+                }
+            }
+        }
+    }
+
+    // Flags connections checked out for longer than leakDetectionThreshold
+    // and, when enabled, takes them back from their borrower.
+    private final class LeakDetector implements Runnable {
+
         @Override
-        public Void call() throws Exception {
-            Lock lock = readWriteLock.writeLock();
+        public void run() {
+            long now = System.nanoTime();
+            long threshold = TimeUnit.MILLISECONDS
+                    .toNanos(leakDetectionThreshold);
+            for (Pooled pooled : connections.values()) {
+                long borrowedAt = pooled.borrowedAt;
+                if (borrowedAt == 0 || now - borrowedAt < threshold
+                        || pooled.state.get() != Pooled.IN_USE) {
+                    continue;
+                }
+                if (pooled.leakReported == false) {
+                    pooled.leakReported = true;
+                    metrics.leaks.increment();
+                    reportLeak(pooled, TimeUnit.NANOSECONDS.toMillis(now
+                            - borrowedAt));
+                }
+                if (reclaimLeaks
+                        && pooled.state.compareAndSet(Pooled.IN_USE,
+                                Pooled.REMOVED)) {
+                    // the borrower's next call fails on the closed connection
+                    // and its close is ignored because the entry is removed.
+                    // The statement cache is confined to the borrower, so it
+                    // is left alone; closing the connection closes the
+                    // statements with it.
+                    pooled.statementCache = null;
+                    reclaimed.put(pooled.con, Boolean.TRUE);
+                    discardQuietly(pooled);
+                    if (logger.isLoggable(Level.WARNING)) {
+                        logger.log(Level.WARNING, "dbcp.leak.reclaimed",
+                                new Object[] { pooled.con });
+                    }
+                }
+            }
+        }
+    }
+
+    private final class Filler implements Runnable {
+
+        // milliseconds before the next attempt; only touched on executor
+        private long backoff;
+
+        @Override
+        public void run() {
+            try {
+                fill();
+            } catch (SQLException | RuntimeException e) {
+                // retried after a growing pause, with filling still set so
+                // that discards meanwhile do not retry sooner
+                backoff = backoff == 0 ? FILL_RETRY_MIN : Math.min(
+                        backoff * 2, FILL_RETRY_MAX);
+                if (logger.isLoggable(Level.WARNING)) {
+                    logger.log(Level.WARNING, "dbcp.fill.retry",
+                            new Object[] { e, backoff });
+                }
+                try {
+                    executor.schedule(this, backoff, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException rejected) {
+                    filling.set(false);
+                }
+                return;
+            }
+            backoff = 0;
+            filling.set(false);
+            requestFill();
+        }
+    }
+
+    // Tracks demand as a moving average of connections in use plus borrowers
+    // waiting, and keeps that many connections open with some headroom. The
+    // average follows a rise quickly and a fall slowly, so that a burst
+    // finds connections warm and a lull drains them gradually.
+    private final class Sizer implements Runnable {
+
+        @Override
+        public void run() {
+            Lock lock = configLock;
             lock.lock();
             try {
-                pool.remove(this);
-                close(con);
-                while (pool.size() < minPoolSize) {
-                    pool.offer(new Pooled(dataSource.getConnection()));
-                }
-            } finally {
-                lock.unlock();
+                resize();
+            } catch (SQLException | RuntimeException e) {
+                // must not throw, or the periodic task would stop
+                if (logger.isLoggable(Level.WARNING)) {
+                    logger.log(Level.WARNING, "dbcp.resize.failed",
+                            new Object[] { e });
+                }
+            } finally {
+                lock.unlock();
+            }
+            requestFill();
+        }
+
+        private void resize() throws SQLException {
+            if (closed || adaptiveSizing == false) {
+                return;
+            }
+            int idle = idleSize();
+            int active = Math.max(0, totalSize.get() - idle);
+            int waiting = waiters.size();
+            int demand = active + waiting;
+            double estimate = demandEstimate;
+            estimate += (demand > estimate ? RISE : FALL) * (demand - estimate);
+            if (Math.abs(demand - estimate) < 0.05) {
+                // settle instead of creeping towards the sample forever
+                estimate = demand;
+            }
+            demandEstimate = estimate;
+            int target = (int) Math.min(Integer.MAX_VALUE,
+                    Math.ceil(estimate * (1 + adaptiveHeadroom)));
+            target = Math.max(adaptiveLowerBound, target);
+            target = Math.min(Math.min(adaptiveUpperBound, maxTotalSize),
+                    target);
+            int previous = warmTarget;
+            if (target != previous) {
+                warmTarget = target;
+                SizingDecision decision = new SizingDecision(
+                        System.currentTimeMillis(), estimate, active,
+                        waiting, previous, target);
+                sizingDecisions.addLast(decision);
+                if (sizingDecisions.size() > SIZING_HISTORY) {
+                    sizingDecisions.pollFirst();
+                }
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "dbcp.resized",
+                            new Object[] { decision });
+                }
+            }
+            // idle connections that top the ones in use up to the target
+            spare = Math.max(0, Math.min(maxPoolSize, target - active));
+            updateShares();
+            int keep = Math.max(minPoolSize, spare);
+            if (idle > keep) {
+                trim(keep);
+            }
+        }
+    }
+
+    private final class WarmUpTask implements Runnable {
+
+        private final WarmUp warmUp;
+        // spreads the workers over the stripes
+        private final int offset;
+
+        public WarmUpTask(WarmUp warmUp, int offset) {
+            this.warmUp = warmUp;
+            this.offset = offset;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (closed == false && warmUp.claim() && warmUpOne()) {
+                }
+            } finally {
+                if (warmUp.leave()) {
+                    // the filler retries what could not be opened
+                    requestFill();
+                }
+            }
+        }
+
+        // false once no stripe is missing a connection
+        private boolean warmUpOne() {
+            int n = stripes.length;
+            for (int i = 0; i < n; i++) {
+                try {
+                    if (fill(stripes[(offset + i) % n])) {
+                        warmUp.opened();
+                        return true;
+                    }
+                } catch (SQLException e) {
+                    warmUp.failed(e);
+                    return true;
+                } catch (RuntimeException e) {
+                    warmUp.failed(new SQLException(e));
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Opens a connection in place of one retired at check-in, so that the
+    // next borrower does not pay for the connect. Replacements run one at a
+    // time on the pool's own thread.
+    private final class Replacer implements Runnable {
+
+        @Override
+        public void run() {
+            if (closed) {
+                return;
+            }
+            Stripe stripe = reserveIdle();
+            if (stripe == null) {
+                return;
+            }
+            // with every open permit taken the filler tops up minPoolSize
+            // once an open completes
+            if (reserveOpen() == false) {
+                stripe.idleSize.decrementAndGet();
+                return;
+            }
+            try {
+                openIdle(stripe);
+            } catch (SQLException | RuntimeException e) {
+                if (logger.isLoggable(Level.WARNING)) {
+                    logger.log(Level.WARNING, "dbcp.fill.failed",
+                            new Object[] { e });
+                }
+                // the filler retries if minPoolSize asks for it
+                requestFill();
+            }
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(
+            PoolingDataSource.class.getName(), "oreore");
+    // weights of a sample above and below the demand average
+    private static final double RISE = 0.5;
+    private static final double FALL = 0.1;
+    private static final int SIZING_HISTORY = 32;
+    // milliseconds between background fills after a failure
+    private static final long FILL_RETRY_MIN = 100;
+    private static final long FILL_RETRY_MAX = 10000;
+    // serializes configuration changes; checkOut/checkIn never take it
+    private final Lock configLock = new ReentrantLock();
+    private final Lock fillLock = new ReentrantLock();
+    private final Lock bulkLock = new ReentrantLock(true);
+    private final Stripe[] stripes;
+    // physical connections that are idle, in use or being opened
+    private final AtomicInteger totalSize = new AtomicInteger();
+    // physical connections being opened
+    private final AtomicInteger opening = new AtomicInteger();
+    // Background opens no borrower waits for yet. A borrower that finds no
+    // idle connection claims one and queues up for it instead of opening a
+    // duplicate; while any claim is pending, dispatch does not open for the
+    // queue either.
+    private final AtomicInteger unclaimedFills = new AtomicInteger();
+    private final AtomicInteger claimedFills = new AtomicInteger();
+    // completed with a connection handed off by checkIn, or with null when a
+    // slot under maxTotalSize has been reserved for the waiter to open
+    private final Queue<CompletableFuture<Pooled>> waiters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<Connection, Pooled> connections = new ConcurrentHashMap<>();
+    // Every registered entry, idle or not. The array is replaced on open and
+    // discard and never changed in place, so check-in publishes an entry by
+    // its state alone and check-out scans without allocating.
+    private volatile Pooled[] entries = new Pooled[0];
+    private final Lock entriesLock = new ReentrantLock();
+    // Connections taken back by leak detection, so that the borrower's late
+    // check-in is ignored instead of adopting a closed connection. Weak, as
+    // the borrower may never return it.
+    private final Map<Connection, Boolean> reclaimed = Collections
+            .synchronizedMap(new WeakHashMap<Connection, Boolean>());
+    private volatile DataSource dataSource;
+    private volatile int minPoolSize = 0;
+    private volatile int maxPoolSize = Integer.MAX_VALUE;
+    private volatile int maxTotalSize = Integer.MAX_VALUE;
+    private volatile int maxConcurrentOpens = Integer.MAX_VALUE;
+    private volatile long checkOutTimeout = Long.MAX_VALUE;
+    private volatile long timeout = Long.MAX_VALUE;
+    private volatile long maxLifetime = Long.MAX_VALUE;
+    private volatile double maxLifetimeJitter = 0.1;
+    private volatile boolean closed;
+    private volatile boolean threadAffinity;
+    private volatile boolean testOnBorrow;
+    private volatile String validationQuery;
+    // seconds; isValid(0) would wait on a hung server for good
+    private volatile int validationTimeout = 5;
+    private volatile long validationInterval = 500;
+    // holds a strong reference so that check-out does not allocate; a stale
+    // entry is simply skipped because its state is no longer IDLE
+    private final ThreadLocal<Pooled> lastReturned = new ThreadLocal<>();
+    // runs the filler, replacer and periodic tasks, which may block on a
+    // connect
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+            1);
+    // fires the timeouts of async check-outs; never blocks, so a slow
+    // connect on executor cannot hold a timeout back
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+            1);
+    // completes checkOutAsync and opens connections for it
+    private volatile Executor asyncExecutor = ForkJoinPool.commonPool();
+    private final AtomicBoolean filling = new AtomicBoolean();
+    // a fill held back by maxConcurrentOpens
+    private final AtomicBoolean fillDeferred = new AtomicBoolean();
+    private final Filler filler = new Filler();
+    private final Sweeper sweeper = new Sweeper();
+    private final Replacer replacer = new Replacer();
+    private ScheduledFuture<?> sweeping;
+    private final LeakDetector leakDetector = new LeakDetector();
+    private ScheduledFuture<?> leakDetecting;
+    private volatile long leakDetectionThreshold = Long.MAX_VALUE;
+    private volatile double leakTraceSampleRate = 0;
+    private volatile boolean reclaimLeaks;
+    private final PoolMetrics metrics = new PoolMetrics();
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private final Sizer sizer = new Sizer();
+    private ScheduledFuture<?> sizing;
+    private volatile boolean adaptiveSizing;
+    private volatile int adaptiveLowerBound = 0;
+    private volatile int adaptiveUpperBound = Integer.MAX_VALUE;
+    private volatile long adaptiveInterval = 1000;
+    private volatile double adaptiveHeadroom = 0.25;
+    private volatile double demandEstimate;
+    private volatile int warmTarget;
+    // idle connections the sizer keeps on top of minPoolSize's
+    private volatile int spare;
+    private final Deque<SizingDecision> sizingDecisions = new ConcurrentLinkedDeque<>();
+
+    public ConnectionPool() {
+        this(1);
+    }
+
+    // Several stripes split the idle connections to cut contention between
+    // many cores; maxTotalSize and getPooledSize stay pool-wide.
+    public ConnectionPool(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        updateShares();
+        // a pending fill retry must not outlive close
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // timers of async check-outs are mostly cancelled long before they
+        // fire; do not keep them queued until then
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private void close(Connection con) throws SQLException {
+        con.close();
+        metrics.closes.increment();
+        if (logger.isLoggable(Level.INFO)) {
+            logger.log(Level.INFO, "dbcp.physical.closed", new Object[] { con });
+        }
+    }
+
+    private Connection open(DataSource dataSource) throws SQLException {
+        if (circuitBreaker.allow() == false) {
+            throw new SQLTransientConnectionException(
+                    "Circuit breaker is open after repeated connect failures");
+        }
+        long start = System.nanoTime();
+        Connection con;
+        try {
+            con = dataSource.getConnection();
+        } catch (SQLException | RuntimeException e) {
+            metrics.failures.increment();
+            circuitBreaker.failed();
+            throw e;
+        }
+        circuitBreaker.succeeded();
+        metrics.connectTime.record(System.nanoTime() - start);
+        metrics.creates.increment();
+        if (logger.isLoggable(Level.INFO)) {
+            logger.log(Level.INFO, "dbcp.physical.opened", new Object[] { con });
+        }
+        return con;
+    }
+
+    private Pooled register(Connection con, DataSource source) {
+        Pooled pooled = new Pooled(con, source);
+        connections.put(con, pooled);
+        Lock lock = entriesLock;
+        lock.lock();
+        try {
+            Pooled[] entries = this.entries;
+            Pooled[] grown = Arrays.copyOf(entries, entries.length + 1);
+            grown[entries.length] = pooled;
+            this.entries = grown;
+        } finally {
+            lock.unlock();
+        }
+        return pooled;
+    }
+
+    // the caller must own a slot reserved by reserveOpen
+    private Pooled openReserved() throws SQLException {
+        DataSource source = dataSource;
+        Connection con;
+        try {
+            con = open(source);
+        } catch (SQLException | RuntimeException e) {
+            opening.decrementAndGet();
+            resumeFill();
+            freeSlot();
+            throw e;
+        }
+        Pooled pooled = register(con, source);
+        opening.decrementAndGet();
+        resumeFill();
+        // borrowers held back by maxConcurrentOpens may open now
+        dispatchQuietly();
+        return pooled;
+    }
+
+    // Opens a connection into an idle slot of the stripe; the caller has
+    // reserved the slot and an open permit. False when the connection was
+    // discarded instead of pooled.
+    private boolean openIdle(Stripe stripe) throws SQLException {
+        stripe.opening.incrementAndGet();
+        unclaimedFills.incrementAndGet();
+        Pooled pooled;
+        try {
+            pooled = openReserved();
+        } catch (SQLException | RuntimeException e) {
+            stripe.idleSize.decrementAndGet();
+            fillFinished(stripe);
+            // a borrower that waited for this connection opens its own
+            dispatchQuietly();
+            throw e;
+        }
+        boolean pooledIdle;
+        try {
+            pooledIdle = pool(stripe, pooled);
+        } finally {
+            fillFinished(stripe);
+            dispatchQuietly();
+        }
+        return pooledIdle;
+    }
+
+    // after the connection has been pooled or has failed to open
+    private void fillFinished(Stripe stripe) {
+        stripe.opening.decrementAndGet();
+        for (;;) {
+            int n = unclaimedFills.get();
+            if (n == 0) {
+                // a borrower claimed it
+                claimedFills.decrementAndGet();
+                return;
+            }
+            if (unclaimedFills.compareAndSet(n, n - 1)) {
+                return;
+            }
+        }
+    }
+
+    // true when the borrower is to queue up for a background open
+    private boolean claimFill() {
+        claimedFills.incrementAndGet();
+        for (;;) {
+            int n = unclaimedFills.get();
+            if (n == 0) {
+                claimedFills.decrementAndGet();
+                return false;
+            }
+            if (unclaimedFills.compareAndSet(n, n - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void dispatchQuietly() {
+        try {
+            dispatch();
+        } catch (SQLException | RuntimeException e) {
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "dbcp.dispatch.failed",
+                        new Object[] { e });
+            }
+        }
+    }
+
+    // Logs the sampled borrowing trace or, for an unsampled check-out, where
+    // the borrowing thread is right now.
+    private void reportLeak(Pooled pooled, long heldMillis) {
+        if (logger.isLoggable(Level.WARNING) == false) {
+            return;
+        }
+        Throwable trace = pooled.borrowTrace;
+        Thread borrower = pooled.borrower;
+        if (trace == null && borrower != null) {
+            trace = new Throwable("Borrowing thread " + borrower.getName()
+                    + " is currently at");
+            trace.setStackTrace(borrower.getStackTrace());
+        }
+        LogRecord record = new LogRecord(Level.WARNING, "dbcp.leak.detected");
+        record.setLoggerName(logger.getName());
+        record.setResourceBundle(logger.getResourceBundle());
+        record.setResourceBundleName(logger.getResourceBundleName());
+        record.setParameters(new Object[] { pooled.con, heldMillis });
+        record.setThrown(trace);
+        logger.log(record);
+    }
+
+    private void closeQuietly(StatementCache cache) {
+        try {
+            cache.close();
+        } catch (SQLException e) {
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "dbcp.statements.close.failed",
+                        new Object[] { e });
+            }
+        }
+    }
+
+    private void discardQuietly(Pooled pooled) {
+        try {
+            discard(pooled);
+        } catch (SQLException | RuntimeException e) {
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "dbcp.physical.close.failed",
+                        new Object[] { pooled.con, e });
+            }
+        }
+    }
+
+    private void discard(Pooled pooled) throws SQLException {
+        connections.remove(pooled.con, pooled);
+        unregister(pooled);
+        StatementCache cache = pooled.statementCache;
+        if (cache != null) {
+            closeQuietly(cache);
+        }
+        try {
+            close(pooled.con);
+        } finally {
+            freeSlot();
+            requestFill();
+        }
+    }
+
+    private void unregister(Pooled pooled) {
+        Lock lock = entriesLock;
+        lock.lock();
+        try {
+            Pooled[] entries = this.entries;
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i] == pooled) {
+                    Pooled[] shrunk = Arrays.copyOf(entries, entries.length - 1);
+                    System.arraycopy(entries, i + 1, shrunk, i, shrunk.length
+                            - i);
+                    this.entries = shrunk;
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean reserveTotal() {
+        for (;;) {
+            int size = totalSize.get();
+            if (size >= maxTotalSize) {
+                return false;
+            }
+            if (totalSize.compareAndSet(size, size + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // A slot under maxTotalSize plus a permit under maxConcurrentOpens. A
+    // borrower that finds every permit taken queues up instead of opening;
+    // it is served by a check-in or by the next open to complete.
+    private boolean reserveOpen() {
+        if (reserveTotal() == false) {
+            return false;
+        }
+        for (;;) {
+            int size = opening.get();
+            if (size >= maxConcurrentOpens) {
+                totalSize.decrementAndGet();
+                return false;
+            }
+            if (opening.compareAndSet(size, size + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void freeSlot() throws SQLException {
+        totalSize.decrementAndGet();
+        dispatch();
+    }
+
+    // the JVM exposes no CPU id, so threads are spread by a hash of their id
+    private int home() {
+        int n = stripes.length;
+        if (n == 1) {
+            return 0;
+        }
+        long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 33) % n);
+    }
+
+    // includes the slots reserved for background opens
+    private int idleSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.idleSize.get();
+        }
+        return size;
+    }
+
+    // connections actually idle, for reporting
+    private int pooledSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.idleSize.get() - stripe.opening.get();
+        }
+        return Math.max(0, size);
+    }
+
+    // splits total so that the shares add up to it exactly
+    private static int share(int total, int stripes, int index) {
+        return total / stripes + (index < total % stripes ? 1 : 0);
+    }
+
+    private void updateShares() {
+        int n = stripes.length;
+        int minPoolSize = Math.max(this.minPoolSize, spare);
+        for (int i = 0; i < n; i++) {
+            stripes[i].minPoolSize = share(minPoolSize, n, i);
+            stripes[i].maxPoolSize = share(maxPoolSize, n, i);
+        }
+    }
+
+    // the home stripe, or the first neighbour with room under its share
+    private Stripe reserveIdle() {
+        int n = stripes.length;
+        int home = home();
+        for (int i = 0; i < n; i++) {
+            Stripe stripe = stripes[(home + i) % n];
+            if (reserveIdle(stripe, stripe.maxPoolSize)) {
+                return stripe;
+            }
+        }
+        return null;
+    }
+
+    private boolean reserveIdle(Stripe stripe, int limit) {
+        for (;;) {
+            int size = stripe.idleSize.get();
+            if (size >= limit) {
+                return false;
+            }
+            if (stripe.idleSize.compareAndSet(size, size + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // the entry is already in entries, so this allocates nothing
+    private void offer(Stripe stripe, Pooled pooled) {
+        pooled.stripe = stripe;
+        pooled.idle();
+        stripe.offers.incrementAndGet();
+    }
+
+    private int offers() {
+        int offers = 0;
+        for (Stripe stripe : stripes) {
+            offers += stripe.offers.get();
+        }
+        return offers;
+    }
+
+    // Offers the entry, then checks for a close or a DataSource replacement
+    // that may have trimmed the pool before the entry was published. The
+    // trim or this check sees the entry, so it is never stranded; false
+    // when it has been discarded.
+    private boolean pool(Stripe stripe, Pooled pooled) throws SQLException {
+        offer(stripe, pooled);
+        if (closed == false && pooled.source == dataSource) {
+            return true;
+        }
+        if (pooled.remove()) {
+            discard(pooled);
+        }
+        return false;
+    }
+
+    // removes the longest idle entry of the stripe; null when it has none
+    private Pooled removeIdle(Stripe stripe) {
+        for (;;) {
+            Pooled oldest = null;
+            for (Pooled pooled : entries) {
+                if (pooled.isIdle() && pooled.stripe == stripe
+                        && (oldest == null
+                                || pooled.lastAccess - oldest.lastAccess < 0)) {
+                    oldest = pooled;
+                }
+            }
+            if (oldest == null || oldest.remove()) {
+                return oldest;
+            }
+        }
+    }
+
+    // for the borrowing thread only, as validation may take a round trip
+    private Pooled pollIdle(Request request) {
+        Pooled pooled;
+        while ((pooled = takeIdle()) != null) {
+            if (usable(pooled, request)) {
+                return pooled;
+            }
+        }
+        return null;
+    }
+
+    // Takes an idle entry without checking it. dispatch uses this on
+    // check-in and configuration threads, and the borrower that receives
+    // the entry validates it.
+    private Pooled takeIdle() {
+        Pooled pooled;
+        if (threadAffinity) {
+            pooled = lastReturned.get();
+            if (pooled != null && pooled.take()) {
+                return pooled;
+            }
+        }
+        // A scan may pass an entry just before it is published and miss it.
+        // Rescanning when anything was offered meanwhile keeps a borrower
+        // from opening a connection while one was idle all along.
+        for (;;) {
+            int offers = offers();
+            pooled = scan();
+            if (pooled != null || offers() == offers) {
+                return pooled;
+            }
+        }
+    }
+
+    // the scan also sees entries remembered by other threads, so nothing
+    // parked in lastReturned is ever stranded; an empty home stripe steals
+    // from its neighbours before a connection is opened
+    private Pooled scan() {
+        Pooled[] entries = this.entries;
+        Stripe home = stripes[home()];
+        for (Pooled pooled : entries) {
+            if (pooled.isIdle() && pooled.stripe == home && pooled.take()) {
+                return pooled;
+            }
+        }
+        if (stripes.length == 1) {
+            return null;
+        }
+        for (Pooled pooled : entries) {
+            if (pooled.take()) {
+                return pooled;
+            }
+        }
+        return null;
+    }
+
+    // Checks a connection that has just been taken from the idle ones and
+    // discards it when broken or opened by a replaced DataSource. A
+    // connection returned within the validation interval is trusted, so the
+    // steady state pays no extra round trip.
+    private boolean usable(Pooled pooled, Request request) {
+        if (pooled.source != dataSource) {
+            pooled.state.set(Pooled.REMOVED);
+            discardQuietly(pooled);
+            return false;
+        }
+        if (testOnBorrow == false
+                || System.nanoTime() - pooled.lastAccess < TimeUnit.MILLISECONDS
+                        .toNanos(validationInterval)) {
+            return true;
+        }
+        if (validate(pooled.con)) {
+            return true;
+        }
+        pooled.state.set(Pooled.REMOVED);
+        metrics.evictions.increment();
+        metrics.validationFailures.increment();
+        request.failedValidations++;
+        discardQuietly(pooled);
+        return false;
+    }
+
+    private boolean validate(Connection con) {
+        try {
+            String query = validationQuery;
+            if (query == null) {
+                return con.isValid(validationTimeout);
+            }
+            try (Statement st = con.createStatement()) {
+                st.setQueryTimeout(validationTimeout);
+                st.execute(query);
+            }
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "dbcp.validation.failed",
+                        new Object[] { con, e });
+            }
+            return false;
+        }
+    }
+
+    private boolean handOff(Pooled pooled) {
+        CompletableFuture<Pooled> waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (waiter.complete(pooled)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Serves queued borrowers from idle connections or free slots. Both
+    // checkIn and a newly queued borrower call this after publishing their
+    // side, so at least one of them sees the other.
+    private void dispatch() throws SQLException {
+        while (waiters.isEmpty() == false) {
+            Pooled pooled = takeIdle();
+            if (pooled != null) {
+                if (handOff(pooled) == false) {
+                    release(pooled);
+                    return;
+                }
+            } else if (claimedFills.get() == 0 && reserveOpen()) {
+                if (handOff(null) == false) {
+                    opening.decrementAndGet();
+                    totalSize.decrementAndGet();
+                    return;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    // returns true when the connection went back to the idle ones
+    private boolean release(Pooled pooled) throws SQLException {
+        boolean expired = expired(pooled, System.nanoTime());
+        // connections opened by a replaced DataSource are not reused
+        if (closed == false && expired == false
+                && totalSize.get() <= maxTotalSize
+                && pooled.source == dataSource) {
+            // in use until now, so the receiver trusts it like a
+            // connection returned within the validation interval
+            pooled.lastAccess = System.nanoTime();
+            pooled.state.set(Pooled.IN_USE);
+            if (handOff(pooled)) {
+                return false;
+            }
+            Stripe stripe = reserveIdle();
+            if (stripe != null) {
+                if (pool(stripe, pooled) == false) {
+                    return false;
+                }
+                if (stripe.idleSize.get() > stripe.maxPoolSize) {
+                    // setMaxPoolSize shrank the pool after we reserved our slot
+                    trim(stripe, stripe.maxPoolSize);
+                }
+                dispatch();
+                return true;
+            }
+        }
+        pooled.state.set(Pooled.REMOVED);
+        discard(pooled);
+        if (expired) {
+            metrics.retirements.increment();
+            requestReplace();
+        }
+        return false;
+    }
+
+    private boolean expired(Pooled pooled, long now) {
+        if (maxLifetime == Long.MAX_VALUE) {
+            return false;
+        }
+        return now - pooled.createdAt >= lifetime(pooled);
+    }
+
+    // in nanoseconds, shortened by where the connection falls in the
+    // jitter range
+    long lifetime(Pooled pooled) {
+        double jitter = maxLifetimeJitter * pooled.lifetimeJitter;
+        return (long) (TimeUnit.MILLISECONDS.toNanos(maxLifetime)
+                * (1 - jitter));
+    }
+
+    private void requestReplace() {
+        if (closed == false) {
+            try {
+                executor.execute(replacer);
+            } catch (RejectedExecutionException e) {
+                // closed meanwhile
+            }
+        }
+    }
+
+    // timeout in nanoseconds; Long.MAX_VALUE waits for good
+    private Pooled await(long timeout, Request request) throws SQLException {
+        CompletableFuture<Pooled> waiter = new CompletableFuture<>();
+        waiters.offer(waiter);
+        dispatch();
+        Pooled pooled;
+        try {
+            if (timeout == Long.MAX_VALUE) {
+                pooled = waiter.get();
+            } else {
+                pooled = waiter.get(timeout, TimeUnit.NANOSECONDS);
+            }
+        } catch (TimeoutException e) {
+            if (waiter.cancel(false)) {
+                waiters.remove(waiter);
+                metrics.timeouts.increment();
+                throw new SQLTimeoutException(
+                        "Timed out waiting for a connection", e);
+            }
+            pooled = waiter.join();
+        } catch (InterruptedException e) {
+            if (waiter.cancel(false)) {
+                waiters.remove(waiter);
+                Thread.currentThread().interrupt();
+                throw new SQLException(
+                        "Interrupted while waiting for a connection", e);
+            }
+            Thread.currentThread().interrupt();
+            pooled = waiter.join();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        }
+        if (pooled == null) {
+            return openReserved();
+        }
+        // null when it was broken and has been discarded
+        return usable(pooled, request) ? pooled : null;
+    }
+
+    private void trim(Stripe stripe, int size) throws SQLException {
+        while (stripe.idleSize.get() > size) {
+            Pooled pooled = removeIdle(stripe);
+            if (pooled == null) {
+                return;
+            }
+            discard(pooled);
+        }
+    }
+
+    // trims the pool as a whole, taking the oldest of each stripe in turn
+    private void trim(int size) throws SQLException {
+        for (Stripe stripe : stripes) {
+            while (idleSize() > size) {
+                Pooled pooled = removeIdle(stripe);
+                if (pooled == null) {
+                    break;
+                }
+                discard(pooled);
+            }
+        }
+    }
+
+    // Discards the idle connections of a replaced DataSource. Unlike trim(0)
+    // it leaves the ones a concurrent fill has meanwhile opened from the new
+    // DataSource, as discarding those would only open them again.
+    private void retire(DataSource current) throws SQLException {
+        for (Pooled pooled : entries) {
+            if (pooled.source != current && pooled.remove()) {
+                discard(pooled);
+            }
+        }
+    }
+
+    // Opens connections until every stripe holds its share of minPoolSize
+    // idle. Only fillers take fillLock, so borrowers and configuration
+    // changes never wait on a connect.
+    private void fill() throws SQLException {
+        Lock lock = fillLock;
+        lock.lock();
+        try {
+            for (Stripe stripe : stripes) {
+                while (closed == false && fill(stripe)) {
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Opens one connection if the stripe is below its share of minPoolSize.
+    // The idle slot is reserved up front so that a concurrent checkIn or
+    // warm-up does not push the pool past minPoolSize meanwhile.
+    private boolean fill(Stripe stripe) throws SQLException {
+        if (reserveIdle(stripe, stripe.minPoolSize) == false) {
+            return false;
+        }
+        if (reserveOpen() == false) {
+            stripe.idleSize.decrementAndGet();
+            fillDeferred.set(true);
+            return false;
+        }
+        return openIdle(stripe);
+    }
+
+    // Sets minPoolSize and opens the missing connections on asyncExecutor,
+    // at most parallelism at a time, instead of one after another. The
+    // pool serves check-outs meanwhile.
+    public WarmUp warmUp(int minPoolSize, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException();
+        }
+        Lock lock = configLock;
+        lock.lock();
+        try {
+            if (minPoolSize > maxPoolSize || minPoolSize > maxTotalSize) {
+                throw new IllegalArgumentException();
+            }
+            this.minPoolSize = minPoolSize;
+            updateShares();
+        } finally {
+            lock.unlock();
+        }
+        int target = 0;
+        for (Stripe stripe : stripes) {
+            target += Math.max(0, stripe.minPoolSize - stripe.idleSize.get());
+        }
+        target = Math.min(target, Math.max(0, maxTotalSize - totalSize.get()));
+        int workers = closed ? 0 : Math.min(parallelism, target);
+        WarmUp warmUp = new WarmUp(target, workers);
+        for (int i = 0; i < workers; i++) {
+            try {
+                asyncExecutor.execute(new WarmUpTask(warmUp, i));
+            } catch (RejectedExecutionException e) {
+                warmUp.failed(new SQLException(e));
+                warmUp.leave();
             }
-            return null;
         }
+        return warmUp;
     }
 
-    private static final Logger logger = Logger.getLogger(
-            PoolingDataSource.class.getName(), "oreore");
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    private final Queue<Pooled> pool = new LinkedList<>();
-    private DataSource dataSource;
-    private int minPoolSize = 0;
-    private int maxPoolSize = Integer.MAX_VALUE;
-    private long timeout = Long.MAX_VALUE;
-    private final ScheduledExecutorService executor = Executors
-            .newSingleThreadScheduledExecutor();
+    private void resumeFill() {
+        if (fillDeferred.compareAndSet(true, false)) {
+            requestFill();
+        }
+    }
 
-    private void close(Connection con) throws SQLException {
-        con.close();
-        if (logger.isLoggable(Level.INFO)) {
-            logger.log(Level.INFO, "dbcp.physical.closed", new Object[] { con });
+    private boolean belowMinPoolSize() {
+        for (Stripe stripe : stripes) {
+            if (stripe.idleSize.get() < stripe.minPoolSize) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private Connection open() throws SQLException {
-        Connection con = dataSource.getConnection();
-        if (logger.isLoggable(Level.INFO)) {
-            logger.log(Level.INFO, "dbcp.physical.opened", new Object[] { con });
+    private void requestFill() {
+        if (closed || belowMinPoolSize() == false) {
+            return;
+        }
+        if (opening.get() >= maxConcurrentOpens) {
+            // the next open to complete asks again; checked once more in
+            // case it completed before the flag was set
+            fillDeferred.set(true);
+            if (opening.get() >= maxConcurrentOpens
+                    || fillDeferred.compareAndSet(true, false) == false) {
+                return;
+            }
+        }
+        if (filling.compareAndSet(false, true)) {
+            try {
+                executor.execute(filler);
+            } catch (RejectedExecutionException e) {
+                filling.set(false);
+            }
         }
-        return con;
     }
 
     public void setDataSource(DataSource dataSource) throws SQLException {
-        Lock lock = readWriteLock.writeLock();
+        Lock lock = configLock;
         lock.lock();
         try {
-            while (pool.isEmpty() == false) {
-                Pooled pooled = pool.poll();
-                close(pooled.getConnection());
-            }
             this.dataSource = dataSource;
-            while (pool.size() < this.minPoolSize) {
-                pool.offer(new Pooled(open()));
-            }
+            circuitBreaker.reset();
+            retire(dataSource);
         } finally {
             lock.unlock();
         }
+        fill();
     }
 
     public void setMinPoolSize(int minPoolSize) throws SQLException {
-        Lock lock = readWriteLock.writeLock();
+        Lock lock = configLock;
         lock.lock();
         try {
-            if (minPoolSize > maxPoolSize) {
+            if (minPoolSize > maxPoolSize || minPoolSize > maxTotalSize) {
                 throw new IllegalArgumentException();
             }
             this.minPoolSize = minPoolSize;
-            while (pool.size() < this.minPoolSize) {
-                pool.offer(new Pooled(open()));
-            }
+            updateShares();
         } finally {
             lock.unlock();
         }
+        fill();
     }
 
     public void setMaxPoolSize(int maxPoolSize) throws SQLException {
-        Lock lock = readWriteLock.writeLock();
+        Lock lock = configLock;
         lock.lock();
         try {
             if (minPoolSize > maxPoolSize) {
                 throw new IllegalArgumentException();
             }
             this.maxPoolSize = maxPoolSize;
-            while (pool.size() > maxPoolSize) {
-                Pooled pooled = pool.poll();
-                close(pooled.getConnection());
+            spare = Math.min(spare, maxPoolSize);
+            updateShares();
+            for (Stripe stripe : stripes) {
+                trim(stripe, stripe.maxPoolSize);
             }
         } finally {
             lock.unlock();
         }
     }
 
-    public Connection checkOut() throws SQLException {
-        Lock lock = readWriteLock.writeLock();
+    public void setMaxTotalSize(int maxTotalSize) throws SQLException {
+        Lock lock = configLock;
         lock.lock();
         try {
-            Pooled pooled = pool.poll();
-            if (pooled != null) {
-                return pooled.getConnection();
+            if (minPoolSize > maxTotalSize) {
+                throw new IllegalArgumentException();
+            }
+            this.maxTotalSize = maxTotalSize;
+            // connections in use are retired when they are checked in
+            int excess = totalSize.get() - maxTotalSize;
+            if (excess > 0) {
+                trim(Math.max(0, idleSize() - excess));
             }
-            return open();
+            // a raised limit may let queued borrowers open a connection
+            dispatch();
         } finally {
             lock.unlock();
         }
     }
 
-    public void checkIn(Connection con) throws SQLException {
-        Lock lock = readWriteLock.writeLock();
-        lock.lock();
+    // Physical connections opened at once, by borrowers and in the
+    // background together, so that a burst on a cold pool does not become a
+    // herd of handshakes. Off by default.
+    public void setMaxConcurrentOpens(int maxConcurrentOpens)
+            throws SQLException {
+        if (maxConcurrentOpens < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.maxConcurrentOpens = maxConcurrentOpens;
+        // a raised limit may let queued borrowers open a connection
+        dispatch();
+        requestFill();
+    }
+
+    public void setCheckOutTimeout(int checkOutTimeout, TimeUnit timeUnit) {
+        this.checkOutTimeout = timeUnit.toMillis(checkOutTimeout);
+    }
+
+    public Connection checkOut() throws SQLException {
+        return borrow().con;
+    }
+
+    Pooled borrow() throws SQLException {
+        return borrow(checkOutTimeoutNanos());
+    }
+
+    // Waits at most timeout nanoseconds instead of the check-out timeout;
+    // Long.MAX_VALUE waits for good. For RoutingConnectionPool, which also
+    // reads the entry's failed validations.
+    Pooled borrow(long timeout) throws SQLException {
+        Request request = new Request(sampleTrace());
+        return lend(acquire(timeout, request), request);
+    }
+
+    private Pooled lend(Pooled pooled, Request request) {
+        long now = System.nanoTime();
+        metrics.waitTime.record(now - request.start);
+        metrics.checkOuts.increment();
+        if (leakDetectionThreshold != Long.MAX_VALUE) {
+            pooled.borrower = request.borrower;
+            pooled.borrowTrace = request.trace;
+            pooled.leakReported = false;
+        }
+        pooled.failedValidations = request.failedValidations;
+        pooled.borrowedAt = now;
+        return pooled;
+    }
+
+    // null unless leak detection is on and this check-out is sampled
+    private Throwable sampleTrace() {
+        if (leakDetectionThreshold == Long.MAX_VALUE) {
+            return null;
+        }
+        double rate = leakTraceSampleRate;
+        boolean sampled = rate > 0
+                && ThreadLocalRandom.current().nextDouble() < rate;
+        return sampled ? new Throwable("Connection was checked out here")
+                : null;
+    }
+
+    private long checkOutTimeoutNanos() {
+        long timeout = checkOutTimeout;
+        return timeout == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.MILLISECONDS
+                .toNanos(timeout);
+    }
+
+    private Pooled acquire(long timeout, Request request) throws SQLException {
+        long deadline = System.nanoTime() + timeout;
+        while (true) {
+            // borrowers queued before us are served first
+            if (waiters.isEmpty()) {
+                Pooled pooled = pollIdle(request);
+                if (pooled != null) {
+                    return pooled;
+                }
+                if (claimFill() == false && reserveOpen()) {
+                    return openReserved();
+                }
+            }
+            Pooled pooled = await(timeout, request);
+            if (pooled != null) {
+                return pooled;
+            }
+            // the connection handed to us failed validation
+            if (timeout != Long.MAX_VALUE) {
+                timeout = deadline - System.nanoTime();
+                if (timeout <= 0) {
+                    metrics.timeouts.increment();
+                    throw new SQLTimeoutException(
+                            "Timed out waiting for a connection");
+                }
+            }
+        }
+    }
+
+    // Checks out n connections or none. Bulk borrowers queue up one at a time
+    // on a fair lock, so two of them never each hold part of what the other
+    // is waiting for; the check-out timeout applies to the whole set.
+    public List<Connection> checkOut(int n) throws SQLException {
+        if (n < 1 || n > maxTotalSize) {
+            throw new IllegalArgumentException();
+        }
+        long timeout = checkOutTimeoutNanos();
+        long deadline = System.nanoTime() + timeout;
+        Lock lock = bulkLock;
         try {
-            if (pool.size() < maxPoolSize) {
-                pool.offer(new Pooled(con));
-            } else {
-                close(con);
+            if (timeout == Long.MAX_VALUE) {
+                lock.lockInterruptibly();
+            } else if (lock.tryLock(timeout, TimeUnit.NANOSECONDS) == false) {
+                metrics.timeouts.increment();
+                throw new SQLTimeoutException(
+                        "Timed out waiting for a connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(
+                    "Interrupted while waiting for a connection", e);
+        }
+        List<Connection> cons = new ArrayList<>(n);
+        try {
+            while (cons.size() < n) {
+                Request request = new Request(sampleTrace());
+                long remaining = timeout == Long.MAX_VALUE ? Long.MAX_VALUE
+                        : deadline - request.start;
+                cons.add(lend(acquire(remaining, request), request).con);
             }
+        } catch (SQLException | RuntimeException e) {
+            for (Connection con : cons) {
+                try {
+                    checkIn(con);
+                } catch (SQLException | RuntimeException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
         } finally {
             lock.unlock();
         }
+        return cons;
+    }
+
+    public void checkIn(Collection<Connection> cons) throws SQLException {
+        SQLException failure = null;
+        for (Connection con : cons) {
+            try {
+                checkIn(con);
+            } catch (SQLException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public CompletableFuture<Connection> checkOutAsync() {
+        return borrowAsync(new Function<Pooled, Connection>() {
+            @Override
+            public Connection apply(Pooled pooled) {
+                return pooled.con;
+            }
+        });
+    }
+
+    // Never blocks the caller: an idle connection is handed over at once, a
+    // connection is opened on asyncExecutor, or the request is queued with
+    // the blocking borrowers. A connection that arrives after the future was
+    // cancelled or timed out goes straight back to the pool.
+    <T> CompletableFuture<T> borrowAsync(final Function<Pooled, T> adapter) {
+        final Request request = new Request(sampleTrace());
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new SQLException(
+                    "Connection pool has been closed"));
+            return result;
+        }
+        if (waiters.isEmpty()) {
+            // validated on asyncExecutor, not on the caller's thread
+            Pooled pooled = takeIdle();
+            if (pooled != null) {
+                deliver(result, pooled, request, adapter);
+                return result;
+            }
+            if (claimFill() == false && reserveOpen()) {
+                openAsync(result, request, adapter);
+                return result;
+            }
+        }
+        enqueue(result, request, adapter);
+        return result;
+    }
+
+    private <T> void enqueue(final CompletableFuture<T> result,
+            final Request request, final Function<Pooled, T> adapter) {
+        final CompletableFuture<Pooled> waiter = new CompletableFuture<>();
+        waiter.whenComplete(new BiConsumer<Pooled, Throwable>() {
+            @Override
+            public void accept(Pooled pooled, Throwable failure) {
+                if (waiter.isCancelled()) {
+                    return;
+                }
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else if (pooled == null) {
+                    openAsync(result, request, adapter);
+                } else {
+                    deliver(result, pooled, request, adapter);
+                }
+            }
+        });
+        result.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable failure) {
+                // cancelling the result gives up the place in the queue
+                if (waiter.cancel(false)) {
+                    waiters.remove(waiter);
+                }
+            }
+        });
+        long timeout = checkOutTimeout;
+        if (timeout != Long.MAX_VALUE) {
+            // what is left of it when the request is queued again
+            timeout = TimeUnit.MILLISECONDS.toNanos(timeout)
+                    - (System.nanoTime() - request.start);
+            if (timeout <= 0) {
+                metrics.timeouts.increment();
+                result.completeExceptionally(new SQLTimeoutException(
+                        "Timed out waiting for a connection"));
+                return;
+            }
+        }
+        waiters.offer(waiter);
+        if (timeout != Long.MAX_VALUE) {
+            final ScheduledFuture<?> expiry = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (waiter.cancel(false)) {
+                        waiters.remove(waiter);
+                        metrics.timeouts.increment();
+                        result.completeExceptionally(new SQLTimeoutException(
+                                "Timed out waiting for a connection"));
+                    }
+                }
+            }, timeout, TimeUnit.NANOSECONDS);
+            waiter.whenComplete(new BiConsumer<Pooled, Throwable>() {
+                @Override
+                public void accept(Pooled pooled, Throwable failure) {
+                    expiry.cancel(false);
+                }
+            });
+        }
+        try {
+            dispatch();
+        } catch (SQLException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    // Validates the idle connection on asyncExecutor rather than on the
+    // thread that took it, and queues the request up again if it is broken.
+    private <T> void deliver(final CompletableFuture<T> result,
+            final Pooled pooled, final Request request,
+            final Function<Pooled, T> adapter) {
+        try {
+            asyncExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (usable(pooled, request) == false) {
+                        enqueue(result, request, adapter);
+                        return;
+                    }
+                    T value = adapter.apply(lend(pooled, request));
+                    if (result.complete(value) == false) {
+                        checkInQuietly(pooled);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            checkInQuietly(pooled);
+            result.completeExceptionally(new SQLException(e));
+        }
+    }
+
+    // the caller must own a slot reserved by reserveOpen
+    private <T> void openAsync(final CompletableFuture<T> result,
+            final Request request, final Function<Pooled, T> adapter) {
+        try {
+            asyncExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (result.isDone()) {
+                        unreserveOpenQuietly();
+                        return;
+                    }
+                    Pooled pooled;
+                    try {
+                        pooled = openReserved();
+                    } catch (SQLException | RuntimeException e) {
+                        result.completeExceptionally(e);
+                        return;
+                    }
+                    T value = adapter.apply(lend(pooled, request));
+                    if (result.complete(value) == false) {
+                        checkInQuietly(pooled);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            unreserveOpenQuietly();
+            result.completeExceptionally(new SQLException(e));
+        }
+    }
+
+    private void checkInQuietly(Pooled pooled) {
+        try {
+            checkIn(pooled);
+        } catch (SQLException | RuntimeException e) {
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "dbcp.physical.close.failed",
+                        new Object[] { pooled.con, e });
+            }
+        }
+    }
+
+    private void unreserveOpenQuietly() {
+        opening.decrementAndGet();
+        try {
+            freeSlot();
+        } catch (SQLException | RuntimeException e) {
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "dbcp.dispatch.failed",
+                        new Object[] { e });
+            }
+        }
+    }
+
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        if (asyncExecutor == null) {
+            throw new IllegalArgumentException();
+        }
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    public Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    // A connection the pool does not know is adopted, unless leak detection
+    // has reclaimed it or it is closed.
+    public void checkIn(Connection con) throws SQLException {
+        Pooled pooled = connections.get(con);
+        if (pooled == null) {
+            if (reclaimed.remove(con) != null) {
+                return;
+            }
+            if (con.isClosed()) {
+                throw new SQLException("Connection is closed");
+            }
+            totalSize.incrementAndGet();
+            pooled = register(con, dataSource);
+        }
+        checkIn(pooled);
+    }
+
+    void checkIn(Pooled pooled) throws SQLException {
+        if (pooled.state.compareAndSet(Pooled.IN_USE,
+                Pooled.RETURNING) == false) {
+            return;
+        }
+        long borrowedAt = pooled.borrowedAt;
+        if (borrowedAt != 0) {
+            metrics.holdTime.record(System.nanoTime() - borrowedAt);
+            pooled.borrowedAt = 0;
+            pooled.borrower = null;
+            pooled.borrowTrace = null;
+        }
+        if (release(pooled) && threadAffinity) {
+            lastReturned.set(pooled);
+        }
+    }
+
+    // for a connection that must not be reused, such as one whose session
+    // could not be reset
+    void evict(Pooled pooled) throws SQLException {
+        if (pooled.state.compareAndSet(Pooled.IN_USE, Pooled.REMOVED)) {
+            pooled.borrowedAt = 0;
+            discard(pooled);
+        }
     }
 
     public void setTimeout(int timeout, TimeUnit timeUnit) {
-        Lock lock = readWriteLock.writeLock();
+        Lock lock = configLock;
         lock.lock();
         try {
             this.timeout = timeUnit.toMillis(timeout);
+            reschedule();
         } finally {
             lock.unlock();
         }
     }
 
-    @Override
-    public void close() throws SQLException {
-        Lock lock = readWriteLock.writeLock();
+    // Connections are closed once they reach this age: at check-in when in
+    // use, by the sweeper when idle. Off by default.
+    public void setMaxLifetime(int maxLifetime, TimeUnit timeUnit) {
+        Lock lock = configLock;
         lock.lock();
         try {
-            executor.shutdown();
-            while (pool.isEmpty() == false) {
-                Pooled pooled = pool.poll();
-                close(pooled.getConnection());
-            }
+            this.maxLifetime = timeUnit.toMillis(maxLifetime);
+            reschedule();
         } finally {
             lock.unlock();
         }
     }
 
-    public int getPooledSize() {
-        Lock lock = readWriteLock.readLock();
+    // Share of maxLifetime by which each connection's lifetime is randomly
+    // shortened, so that connections opened together do not all retire
+    // together.
+    public void setMaxLifetimeJitter(double maxLifetimeJitter) {
+        if (maxLifetimeJitter < 0 || maxLifetimeJitter > 1) {
+            throw new IllegalArgumentException();
+        }
+        this.maxLifetimeJitter = maxLifetimeJitter;
+    }
+
+    // must be called with configLock held
+    private void reschedule() {
+        if (sweeping != null) {
+            sweeping.cancel(false);
+        }
+        sweeping = schedule(sweeper, Math.min(timeout, maxLifetime));
+    }
+
+    // must be called with configLock held
+    private ScheduledFuture<?> schedule(Runnable task, long limit) {
+        if (closed || limit == Long.MAX_VALUE) {
+            return null;
+        }
+        // running at a quarter of the limit acts at most 25% late; capped so
+        // that long limits stay responsive
+        long period = Math.max(1, Math.min(limit / 4, 1000));
+        return executor.scheduleWithFixedDelay(task, period, period,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // Consecutive connect failures after which connects fail fast for the
+    // cool-down; off by default.
+    public void setCircuitBreakerThreshold(int threshold) {
+        circuitBreaker.setThreshold(threshold);
+    }
+
+    public void setCircuitBreakerCoolDown(int coolDown, TimeUnit timeUnit) {
+        circuitBreaker.setCoolDown(timeUnit.toMillis(coolDown));
+    }
+
+    // Lets the pool size itself to the observed demand within the bounds;
+    // minPoolSize then only acts as a floor of idle connections.
+    public void setAdaptiveSizing(boolean adaptiveSizing) {
+        Lock lock = configLock;
         lock.lock();
         try {
-            return pool.size();
+            this.adaptiveSizing = adaptiveSizing;
+            demandEstimate = 0;
+            warmTarget = 0;
+            spare = 0;
+            updateShares();
+            rescheduleSizing();
         } finally {
             lock.unlock();
         }
     }
 
-    public DataSource getDataSource() {
-        Lock lock = readWriteLock.readLock();
+    // connections in use and idle that the adaptive sizer keeps open
+    public void setAdaptiveBounds(int lowerBound, int upperBound) {
+        if (lowerBound < 0 || lowerBound > upperBound) {
+            throw new IllegalArgumentException();
+        }
+        Lock lock = configLock;
         lock.lock();
         try {
-            return dataSource;
+            this.adaptiveLowerBound = lowerBound;
+            this.adaptiveUpperBound = upperBound;
         } finally {
             lock.unlock();
         }
     }
 
-    public int getMaxPoolSize() {
-        Lock lock = readWriteLock.readLock();
+    // how often demand is sampled
+    public void setAdaptiveInterval(int adaptiveInterval, TimeUnit timeUnit) {
+        Lock lock = configLock;
         lock.lock();
         try {
-            return maxPoolSize;
+            this.adaptiveInterval = Math.max(1,
+                    timeUnit.toMillis(adaptiveInterval));
+            rescheduleSizing();
         } finally {
             lock.unlock();
         }
     }
 
-    public int getMinPoolSize() {
-        Lock lock = readWriteLock.readLock();
+    // share of the demand kept open on top of it, ahead of a rise
+    public void setAdaptiveHeadroom(double adaptiveHeadroom) {
+        if (adaptiveHeadroom >= 0 == false) {
+            throw new IllegalArgumentException();
+        }
+        this.adaptiveHeadroom = adaptiveHeadroom;
+    }
+
+    // must be called with configLock held
+    private void rescheduleSizing() {
+        if (sizing != null) {
+            sizing.cancel(false);
+            sizing = null;
+        }
+        if (adaptiveSizing && closed == false) {
+            sizing = executor.scheduleWithFixedDelay(sizer, adaptiveInterval,
+                    adaptiveInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // the most recent changes of the adaptive target, oldest first
+    public List<SizingDecision> getSizingDecisions() {
+        return new ArrayList<>(sizingDecisions);
+    }
+
+    public double getDemandEstimate() {
+        return demandEstimate;
+    }
+
+    // 0 until the adaptive sizer has run
+    public int getAdaptiveTarget() {
+        return warmTarget;
+    }
+
+    // Connections checked out longer than this are logged; off by default.
+    public void setLeakDetectionThreshold(int threshold, TimeUnit timeUnit) {
+        Lock lock = configLock;
         lock.lock();
         try {
-            return minPoolSize;
+            this.leakDetectionThreshold = timeUnit.toMillis(threshold);
+            if (leakDetecting != null) {
+                leakDetecting.cancel(false);
+            }
+            leakDetecting = schedule(leakDetector, leakDetectionThreshold);
         } finally {
             lock.unlock();
         }
     }
 
-    public long getTimeout() {
-        Lock lock = readWriteLock.readLock();
+    // The share of check-outs that capture their stack up front. Capturing is
+    // costly, so the default 0 only records where the borrower is once the
+    // threshold has been crossed.
+    public void setLeakTraceSampleRate(double leakTraceSampleRate) {
+        if (leakTraceSampleRate < 0 || leakTraceSampleRate > 1) {
+            throw new IllegalArgumentException();
+        }
+        this.leakTraceSampleRate = leakTraceSampleRate;
+    }
+
+    public void setReclaimLeaks(boolean reclaimLeaks) {
+        this.reclaimLeaks = reclaimLeaks;
+    }
+
+    public void setThreadAffinity(boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+    }
+
+    public void setTestOnBorrow(boolean testOnBorrow) {
+        this.testOnBorrow = testOnBorrow;
+    }
+
+    // null validates with Connection.isValid
+    public void setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    public void setValidationTimeout(int validationTimeout, TimeUnit timeUnit) {
+        // JDBC takes whole seconds; round up so that a short timeout is not
+        // mistaken for "no timeout". 5 seconds by default, and 0 lets
+        // validation wait for good.
+        long millis = timeUnit.toMillis(validationTimeout);
+        this.validationTimeout = (int) Math.min(Integer.MAX_VALUE,
+                (millis + 999) / 1000);
+    }
+
+    public void setValidationInterval(int validationInterval,
+            TimeUnit timeUnit) {
+        this.validationInterval = timeUnit.toMillis(validationInterval);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        Lock lock = configLock;
         lock.lock();
         try {
-            return timeout;
+            closed = true;
+            executor.shutdown();
+            // the waiters are failed below, so pending timeouts are moot
+            timer.shutdownNow();
+            CompletableFuture<Pooled> waiter;
+            while ((waiter = waiters.poll()) != null) {
+                waiter.completeExceptionally(new SQLException(
+                        "Connection pool has been closed"));
+            }
+            trim(0);
         } finally {
             lock.unlock();
         }
     }
+
+    public PoolMetrics.Snapshot getMetrics() {
+        int idle = pooledSize();
+        return new PoolMetrics.Snapshot(metrics, Math.max(0, totalSize.get()
+                - idle), idle, waiters.size());
+    }
+
+    public int getPooledSize() {
+        return pooledSize();
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public int getCircuitBreakerThreshold() {
+        return circuitBreaker.getThreshold();
+    }
+
+    public long getCircuitBreakerCoolDown() {
+        return circuitBreaker.getCoolDown();
+    }
+
+    // true while connects fail fast or the probe is in flight
+    public boolean isCircuitOpen() {
+        return circuitBreaker.isOpen();
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public double getMaxLifetimeJitter() {
+        return maxLifetimeJitter;
+    }
+
+    public int getMaxConcurrentOpens() {
+        return maxConcurrentOpens;
+    }
+
+    public int getMaxTotalSize() {
+        return maxTotalSize;
+    }
+
+    public long getCheckOutTimeout() {
+        return checkOutTimeout;
+    }
+
+    public boolean isThreadAffinity() {
+        return threadAffinity;
+    }
+
+    public boolean isTestOnBorrow() {
+        return testOnBorrow;
+    }
+
+    public long getLeakDetectionThreshold() {
+        return leakDetectionThreshold;
+    }
+
+    public double getLeakTraceSampleRate() {
+        return leakTraceSampleRate;
+    }
+
+    public boolean isReclaimLeaks() {
+        return reclaimLeaks;
+    }
+
+    public String getValidationQuery() {
+        return validationQuery;
+    }
+
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    public boolean isAdaptiveSizing() {
+        return adaptiveSizing;
+    }
+
+    public int getAdaptiveLowerBound() {
+        return adaptiveLowerBound;
+    }
+
+    public int getAdaptiveUpperBound() {
+        return adaptiveUpperBound;
+    }
+
+    public long getAdaptiveInterval() {
+        return adaptiveInterval;
+    }
+
+    public double getAdaptiveHeadroom() {
+        return adaptiveHeadroom;
+    }
+
+    public long getValidationInterval() {
+        return validationInterval;
+    }
 }
@@ -0,0 +1,247 @@
+package oreore.dbcp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Recording is a handful of atomic adds on preallocated cells, so it takes no
+// lock and allocates nothing on the check-out path.
+public final class PoolMetrics {
+
+    // Bucket i counts durations below 2^i microseconds; the last bucket also
+    // takes everything longer.
+    static final class Histogram {
+
+        static final int BUCKETS = 32;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+
+        public void record(long nanos) {
+            long micros = Math.max(0, nanos) / 1000;
+            int bucket = Math.min(BUCKETS - 1,
+                    64 - Long.numberOfLeadingZeros(micros));
+            counts.incrementAndGet(bucket);
+            total.add(Math.max(0, nanos));
+        }
+
+        public Distribution snapshot() {
+            long[] values = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                values[i] = counts.get(i);
+            }
+            return new Distribution(values, total.sum());
+        }
+    }
+
+    // Buckets are read one by one while recording goes on, so the counts of
+    // a snapshot may be off by the few events recorded meanwhile.
+    public static final class Distribution {
+
+        private final long[] counts;
+        private final long count;
+        private final long total;
+
+        Distribution(long[] counts, long total) {
+            this.counts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.count = count;
+            this.total = total;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotal(TimeUnit timeUnit) {
+            return timeUnit.convert(total, TimeUnit.NANOSECONDS);
+        }
+
+        public long getMean(TimeUnit timeUnit) {
+            return count == 0 ? 0 : timeUnit.convert(total / count,
+                    TimeUnit.NANOSECONDS);
+        }
+
+        public int getBucketCount() {
+            return counts.length;
+        }
+
+        public long getBucket(int bucket) {
+            return counts[bucket];
+        }
+
+        // exclusive; Long.MAX_VALUE for the last bucket
+        public long getUpperBound(int bucket, TimeUnit timeUnit) {
+            if (bucket == counts.length - 1) {
+                return Long.MAX_VALUE;
+            }
+            return timeUnit.convert(1L << bucket, TimeUnit.MICROSECONDS);
+        }
+
+        // the upper bound of the bucket holding the given quantile
+        public long getPercentile(double quantile, TimeUnit timeUnit) {
+            if (quantile < 0 || quantile > 1) {
+                throw new IllegalArgumentException();
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return getUpperBound(i, timeUnit);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return "Distribution(count=" + count + ", mean="
+                    + getMean(TimeUnit.MICROSECONDS) + "us, p50="
+                    + bound(0.5) + ", p99=" + bound(0.99) + ")";
+        }
+
+        private String bound(double quantile) {
+            long bound = getPercentile(quantile, TimeUnit.MICROSECONDS);
+            return bound == Long.MAX_VALUE ? "inf" : "<" + bound + "us";
+        }
+    }
+
+    public static final class Snapshot {
+
+        private final long checkOuts;
+        private final long creates;
+        private final long closes;
+        private final long evictions;
+        private final long validationFailures;
+        private final long retirements;
+        private final long failures;
+        private final long timeouts;
+        private final long leaks;
+        private final int active;
+        private final int idle;
+        private final int waiting;
+        private final Distribution waitTime;
+        private final Distribution holdTime;
+        private final Distribution connectTime;
+
+        Snapshot(PoolMetrics metrics, int active, int idle, int waiting) {
+            this.checkOuts = metrics.checkOuts.sum();
+            this.creates = metrics.creates.sum();
+            this.closes = metrics.closes.sum();
+            this.evictions = metrics.evictions.sum();
+            this.validationFailures = metrics.validationFailures.sum();
+            this.retirements = metrics.retirements.sum();
+            this.failures = metrics.failures.sum();
+            this.timeouts = metrics.timeouts.sum();
+            this.leaks = metrics.leaks.sum();
+            this.active = active;
+            this.idle = idle;
+            this.waiting = waiting;
+            this.waitTime = metrics.waitTime.snapshot();
+            this.holdTime = metrics.holdTime.snapshot();
+            this.connectTime = metrics.connectTime.snapshot();
+        }
+
+        public long getCheckOuts() {
+            return checkOuts;
+        }
+
+        public long getCreates() {
+            return creates;
+        }
+
+        public long getCloses() {
+            return closes;
+        }
+
+        // idle connections retired by the timeout or by failed validation
+        public long getEvictions() {
+            return evictions;
+        }
+
+        // connections that failed validation on borrow, a subset of the
+        // evictions
+        public long getValidationFailures() {
+            return validationFailures;
+        }
+
+        // connections closed for reaching maxLifetime
+        public long getRetirements() {
+            return retirements;
+        }
+
+        // physical connections that could not be opened
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        // connections reported by leak detection
+        public long getLeaks() {
+            return leaks;
+        }
+
+        // checked out or being opened
+        public int getActive() {
+            return active;
+        }
+
+        public int getIdle() {
+            return idle;
+        }
+
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public Distribution getWaitTime() {
+            return waitTime;
+        }
+
+        public Distribution getHoldTime() {
+            return holdTime;
+        }
+
+        public Distribution getConnectTime() {
+            return connectTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot(checkOuts=" + checkOuts + ", creates=" + creates
+                    + ", closes=" + closes + ", evictions=" + evictions
+                    + ", validationFailures=" + validationFailures
+                    + ", retirements=" + retirements + ", failures="
+                    + failures + ", timeouts=" + timeouts + ", leaks=" + leaks
+                    + ", active=" + active + ", idle=" + idle + ", waiting="
+                    + waiting + ", waitTime=" + waitTime + ", holdTime="
+                    + holdTime + ", connectTime=" + connectTime + ")";
+        }
+    }
+
+    final LongAdder checkOuts = new LongAdder();
+    final LongAdder creates = new LongAdder();
+    final LongAdder closes = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder validationFailures = new LongAdder();
+    final LongAdder retirements = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder leaks = new LongAdder();
+    final Histogram waitTime = new Histogram();
+    final Histogram holdTime = new Histogram();
+    final Histogram connectTime = new Histogram();
+
+    PoolMetrics() {
+    }
+}
@@ -0,0 +1,471 @@
+package oreore.dbcp;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+final class PooledConnection implements Connection {
+
+    private static final Logger logger = Logger.getLogger(
+            PoolingDataSource.class.getName(), "oreore");
+    // stands for "whatever the driver defaults to" in cache keys
+    private static final int DEFAULT_HOLDABILITY = 0;
+    private final ConnectionPool cp;
+    private final ConnectionPool.Pooled pooled;
+    private final Connection con;
+    private final StatementCache statementCache;
+    private final SessionState sessionState;
+    private List<CachedPreparedStatement> statements;
+    private boolean closed;
+
+    PooledConnection(ConnectionPool cp, int statementCacheSize)
+            throws SQLException {
+        this(cp, cp.borrow(), statementCacheSize);
+    }
+
+    PooledConnection(ConnectionPool cp, ConnectionPool.Pooled pooled,
+            int statementCacheSize) {
+        this.cp = cp;
+        this.pooled = pooled;
+        this.con = pooled.getConnection();
+        this.sessionState = pooled.getSessionState();
+        this.statementCache = statementCacheSize > 0 ? pooled
+                .getStatementCache(statementCacheSize) : null;
+        if (logger.isLoggable(Level.INFO)) {
+            logger.log(Level.INFO, "dbcp.logical.opened",
+                    new Object[] { this });
+        }
+    }
+
+    private Connection delegate() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+        return con;
+    }
+
+    private PreparedStatement prepare(StatementCache.Key key,
+            PreparedStatement ps) {
+        CachedPreparedStatement cached = new CachedPreparedStatement(
+                statementCache, key, ps, this);
+        if (statements == null) {
+            statements = new ArrayList<>();
+        }
+        statements.add(cached);
+        return cached;
+    }
+
+    void forget(CachedPreparedStatement cached) {
+        statements.remove(cached);
+    }
+
+    private void release() throws SQLException {
+        try {
+            sessionState.reset(con);
+        } catch (SQLException | RuntimeException e) {
+            // the next borrower must not inherit a half restored session
+            cp.evict(pooled);
+            throw e;
+        }
+        cp.checkIn(pooled);
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return delegate().createStatement();
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        Connection con = delegate();
+        if (statementCache == null) {
+            return con.prepareStatement(sql);
+        }
+        StatementCache.Key key = new StatementCache.Key(sql,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY,
+                DEFAULT_HOLDABILITY);
+        PreparedStatement ps = statementCache.take(key);
+        if (ps == null) {
+            ps = con.prepareStatement(sql);
+        }
+        return prepare(key, ps);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return delegate().prepareCall(sql);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return delegate().nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        sessionState.setAutoCommit(delegate(), autoCommit);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return sessionState.getAutoCommit(delegate());
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        delegate().commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        delegate().rollback();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        if (pooled.isRemoved()) {
+            // reclaimed by leak detection: the physical connection and its
+            // statements are closed already and belong to the pool no more
+            closed = true;
+        } else {
+            closeAndRelease();
+        }
+        if (logger.isLoggable(Level.INFO)) {
+            logger.log(Level.INFO, "dbcp.logical.closed",
+                    new Object[] { this });
+        }
+    }
+
+    private void closeAndRelease() throws SQLException {
+        // hand the statements back to the cache before the connection
+        // can be borrowed by someone else
+        try {
+            if (statements != null) {
+                for (int i = statements.size() - 1; i >= 0; i--) {
+                    statements.get(i).close();
+                }
+            }
+        } finally {
+            closed = true;
+            release();
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed || con.isClosed();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return delegate().getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        sessionState.setReadOnly(delegate(), readOnly);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return sessionState.isReadOnly(delegate());
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        sessionState.setCatalog(delegate(), catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return sessionState.getCatalog(delegate());
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        sessionState.setTransactionIsolation(delegate(), level);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return sessionState.getTransactionIsolation(delegate());
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return delegate().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        delegate().clearWarnings();
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType,
+            int resultSetConcurrency) throws SQLException {
+        return delegate().createStatement(resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType,
+            int resultSetConcurrency) throws SQLException {
+        Connection con = delegate();
+        if (statementCache == null) {
+            return con.prepareStatement(sql, resultSetType,
+                    resultSetConcurrency);
+        }
+        StatementCache.Key key = new StatementCache.Key(sql, resultSetType,
+                resultSetConcurrency, DEFAULT_HOLDABILITY);
+        PreparedStatement ps = statementCache.take(key);
+        if (ps == null) {
+            ps = con.prepareStatement(sql, resultSetType,
+                    resultSetConcurrency);
+        }
+        return prepare(key, ps);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType,
+            int resultSetConcurrency) throws SQLException {
+        return delegate().prepareCall(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return delegate().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        delegate().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        delegate().setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return delegate().getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return delegate().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return delegate().setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        delegate().rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        delegate().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType,
+            int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        return delegate().createStatement(resultSetType, resultSetConcurrency,
+                resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType,
+            int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        Connection con = delegate();
+        if (statementCache == null) {
+            return con.prepareStatement(sql, resultSetType,
+                    resultSetConcurrency, resultSetHoldability);
+        }
+        StatementCache.Key key = new StatementCache.Key(sql, resultSetType,
+                resultSetConcurrency, resultSetHoldability);
+        PreparedStatement ps = statementCache.take(key);
+        if (ps == null) {
+            ps = con.prepareStatement(sql, resultSetType,
+                    resultSetConcurrency, resultSetHoldability);
+        }
+        return prepare(key, ps);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType,
+            int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        return delegate().prepareCall(sql, resultSetType, resultSetConcurrency,
+                resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
+            throws SQLException {
+        return delegate().prepareStatement(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
+            throws SQLException {
+        return delegate().prepareStatement(sql, columnIndexes);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames)
+            throws SQLException {
+        return delegate().prepareStatement(sql, columnNames);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return delegate().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return delegate().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return delegate().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return delegate().createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return delegate().isValid(timeout);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value)
+            throws SQLClientInfoException {
+        if (closed) {
+            throw new SQLClientInfoException("Connection is closed", null);
+        }
+        con.setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties)
+            throws SQLClientInfoException {
+        if (closed) {
+            throw new SQLClientInfoException("Connection is closed", null);
+        }
+        con.setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return delegate().getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return delegate().getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements)
+            throws SQLException {
+        return delegate().createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes)
+            throws SQLException {
+        return delegate().createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        sessionState.setSchema(delegate(), schema);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return sessionState.getSchema(delegate());
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        delegate().abort(executor);
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds)
+            throws SQLException {
+        sessionState.setNetworkTimeout(delegate(), executor, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return sessionState.getNetworkTimeout(delegate());
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return delegate().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate().isWrapperFor(iface);
+    }
+
+    @Override
+    public String toString() {
+        return "Pooled(" + con + ")";
+    }
+
+    @Override
+    public int hashCode() {
+        return con.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof PooledConnection) {
+            return con.equals(((PooledConnection) obj).con);
+        }
+        return false;
+    }
+}
@@ -1,10 +1,15 @@
 package oreore.dbcp;
 
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
 import javax.sql.DataSource;
 
 public interface PoolingDataSource extends DataSource, AutoCloseable {
 
+    // completes on the pool's async executor; see ConnectionPool.checkOutAsync
+    CompletableFuture<Connection> getConnectionAsync();
+
     @Override
     void close() throws SQLException;
 }
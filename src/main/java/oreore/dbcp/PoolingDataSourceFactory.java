@@ -1,112 +1,106 @@
 package oreore.dbcp;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.logging.Level;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.logging.Logger;
-import javax.sql.DataSource;
 
 public class PoolingDataSourceFactory {
 
-    private static class PoolingDataSourceHandler implements InvocationHandler {
+    private static class PoolingDataSourceImpl implements PoolingDataSource {
 
         private final ConnectionPool cp;
-        private final ClassLoader loader;
-        private final PoolingDataSource proxy;
+        private final int statementCacheSize;
 
-        public PoolingDataSourceHandler(ConnectionPool cp, ClassLoader loader) {
+        public PoolingDataSourceImpl(ConnectionPool cp, int statementCacheSize) {
             this.cp = cp;
-            this.loader = loader;
-            this.proxy = (PoolingDataSource) Proxy.newProxyInstance(loader,
-                    new Class<?>[] { PoolingDataSource.class }, this);
+            this.statementCacheSize = statementCacheSize;
         }
 
-        public PoolingDataSource get() {
-            return proxy;
+        @Override
+        public Connection getConnection() throws SQLException {
+            return new PooledConnection(cp, statementCacheSize);
         }
 
         @Override
-        public Object invoke(Object proxy, Method method, Object[] args)
-                throws Throwable {
+        public CompletableFuture<Connection> getConnectionAsync() {
+            return cp.borrowAsync(
+                    new Function<ConnectionPool.Pooled, Connection>() {
+                @Override
+                public Connection apply(ConnectionPool.Pooled pooled) {
+                    return new PooledConnection(cp, pooled, statementCacheSize);
+                }
+            });
+        }
 
-            if (method.equals(DataSource.class.getMethod("getConnection"))) {
-                return new ConnectionHandler(cp, loader).get();
-            }
+        @Override
+        public Connection getConnection(String username, String password)
+                throws SQLException {
+            return cp.getDataSource().getConnection(username, password);
+        }
 
-            if (method.equals(PoolingDataSource.class.getMethod("close"))) {
-                cp.close();
-                return null;
-            }
+        @Override
+        public PrintWriter getLogWriter() throws SQLException {
+            return cp.getDataSource().getLogWriter();
+        }
 
-            return method.invoke(cp.getDataSource(), args);
+        @Override
+        public void setLogWriter(PrintWriter out) throws SQLException {
+            cp.getDataSource().setLogWriter(out);
         }
-    }
 
-    private static class ConnectionHandler implements InvocationHandler {
+        @Override
+        public void setLoginTimeout(int seconds) throws SQLException {
+            cp.getDataSource().setLoginTimeout(seconds);
+        }
 
-        private final ConnectionPool cp;
-        private final Connection con;
-        private final Connection proxy;
+        @Override
+        public int getLoginTimeout() throws SQLException {
+            return cp.getDataSource().getLoginTimeout();
+        }
 
-        public ConnectionHandler(ConnectionPool cp, ClassLoader loader)
-                throws SQLException {
-            this.cp = cp;
-            this.con = this.cp.checkOut();
-            proxy = (Connection) Proxy.newProxyInstance(loader,
-                    new Class<?>[] { Connection.class }, this);
-            if (logger.isLoggable(Level.INFO)) {
-                logger.log(Level.INFO, "dbcp.logical.opened",
-                        new Object[] { proxy });
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            return cp.getDataSource().getParentLogger();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            if (iface.isInstance(this)) {
+                return iface.cast(this);
             }
+            return cp.getDataSource().unwrap(iface);
         }
 
-        public Connection get() {
-            return proxy;
+        @Override
+        public boolean isWrapperFor(Class<?> iface) throws SQLException {
+            return iface.isInstance(this)
+                    || cp.getDataSource().isWrapperFor(iface);
         }
 
         @Override
-        public Object invoke(Object proxy, Method method, Object[] args)
-                throws Throwable {
-            if (method.equals(Connection.class.getMethod("close"))) {
-                cp.checkIn(con);
-                if (logger.isLoggable(Level.INFO)) {
-                    logger.log(Level.INFO, "dbcp.logical.closed",
-                            new Object[] { proxy });
-                }
-                return null;
-            }
+        public void close() throws SQLException {
+            cp.close();
+        }
+    }
 
-            if (method.equals(Object.class.getMethod("toString"))) {
-                return "Pooled(" + con + ")";
-            } else if (method.equals(Object.class.getMethod("hashCode"))) {
-                return con.hashCode();
-            } else if (method.equals(Object.class.getMethod("equals",
-                    Object.class))) {
-                Object other = args[0];
-                if (other != null && Proxy.isProxyClass(other.getClass())) {
-                    InvocationHandler handler = Proxy
-                            .getInvocationHandler(other);
-                    if (ConnectionHandler.class.isAssignableFrom(handler
-                            .getClass())) {
-                        return con
-                                .equals(ConnectionHandler.class.cast(handler).con);
-                    }
-                }
-                return false;
-            }
+    private int statementCacheSize = 0;
 
-            return method.invoke(con, args);
+    public void setStatementCacheSize(int statementCacheSize) {
+        if (statementCacheSize < 0) {
+            throw new IllegalArgumentException();
         }
+        this.statementCacheSize = statementCacheSize;
     }
 
-    private static final Logger logger = Logger.getLogger(
-            PoolingDataSource.class.getName(), "oreore");
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
 
     public PoolingDataSource create(ConnectionPool cp) {
-        ClassLoader loader = getClass().getClassLoader();
-        return new PoolingDataSourceHandler(cp, loader).get();
+        return new PoolingDataSourceImpl(cp, statementCacheSize);
     }
 }
@@ -0,0 +1,332 @@
+package oreore.dbcp;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Spreads check-outs over several ConnectionPools, typically read replicas.
+// A member that keeps failing is ejected and only comes back once a
+// background probe gets a valid connection from it. Failing means a
+// check-out that throws, or, with testOnBorrow set on the member, one that
+// itself discarded connections that failed validation.
+public class RoutingConnectionPool implements AutoCloseable {
+
+    public enum Policy {
+
+        // fewest connections checked out and not yet returned
+        LEAST_OUTSTANDING,
+
+        // Lowest moving average of the time from check-out to check-in,
+        // weighted by the connections outstanding. That covers waiting for
+        // the member's pool and the statements run on the connection, so a
+        // slow replica scores worse as long as the work is alike.
+        LATENCY
+    }
+
+    private final class Member {
+
+        private final ConnectionPool pool;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile double latency;
+        private volatile boolean ejected;
+
+        public Member(ConnectionPool pool) {
+            this.pool = pool;
+        }
+
+        public double score() {
+            if (policy == Policy.LEAST_OUTSTANDING) {
+                return outstanding.get();
+            }
+            return latency * (outstanding.get() + 1);
+        }
+
+        public void succeeded() {
+            failures.set(0);
+        }
+
+        // racy on purpose: a lost update only skews one sample
+        public void returned(long nanos) {
+            double latency = this.latency;
+            this.latency = latency == 0 ? nanos : latency + DECAY
+                    * (nanos - latency);
+        }
+
+        public void failed(SQLException e) {
+            if (failures.incrementAndGet() >= failureThreshold
+                    && ejected == false) {
+                ejected = true;
+                if (logger.isLoggable(Level.WARNING)) {
+                    logger.log(Level.WARNING, "dbcp.member.ejected",
+                            new Object[] { pool.getDataSource(), e });
+                }
+            }
+        }
+
+        public void reinstate() {
+            failures.set(0);
+            ejected = false;
+            if (logger.isLoggable(Level.INFO)) {
+                logger.log(Level.INFO, "dbcp.member.reinstated",
+                        new Object[] { pool.getDataSource() });
+            }
+        }
+    }
+
+    private static final class Loan {
+
+        private final Member member;
+        private final long start;
+
+        public Loan(Member member, long start) {
+            this.member = member;
+            this.start = start;
+        }
+    }
+
+    private final class Prober implements Runnable {
+
+        @Override
+        public void run() {
+            for (Member member : members) {
+                if (member.ejected && probe(member)) {
+                    member.reinstate();
+                }
+            }
+        }
+
+        // bounded, as an unreachable member would otherwise hold up the
+        // probing of the others for the member's check-out timeout
+        private boolean probe(Member member) {
+            try {
+                Connection con = member.pool.borrow(
+                        TimeUnit.SECONDS.toNanos(PROBE_TIMEOUT))
+                        .getConnection();
+                try {
+                    return con.isValid(PROBE_TIMEOUT);
+                } finally {
+                    member.pool.checkIn(con);
+                }
+            } catch (SQLException | RuntimeException e) {
+                return false;
+            }
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(
+            PoolingDataSource.class.getName(), "oreore");
+    // weight of the newest sample in the latency average
+    private static final double DECAY = 0.2;
+    // seconds, as taken by Connection.isValid
+    private static final int PROBE_TIMEOUT = 5;
+    private final Lock configLock = new ReentrantLock();
+    private final List<Member> members = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<Connection, Loan> borrowed = new ConcurrentHashMap<>();
+    private volatile Policy policy = Policy.LEAST_OUTSTANDING;
+    private volatile int failureThreshold = 3;
+    private volatile long probeInterval = 1000;
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+            1);
+    private final Prober prober = new Prober();
+    private ScheduledFuture<?> probing;
+
+    public RoutingConnectionPool() {
+        reschedule();
+    }
+
+    public void addMember(ConnectionPool pool) {
+        members.add(new Member(pool));
+    }
+
+    public void removeMember(ConnectionPool pool) {
+        for (Member member : members) {
+            if (member.pool == pool) {
+                members.remove(member);
+            }
+        }
+    }
+
+    public List<ConnectionPool> getMembers() {
+        List<ConnectionPool> pools = new ArrayList<>();
+        for (Member member : members) {
+            pools.add(member.pool);
+        }
+        return pools;
+    }
+
+    public boolean isEjected(ConnectionPool pool) {
+        for (Member member : members) {
+            if (member.pool == pool) {
+                return member.ejected;
+            }
+        }
+        throw new IllegalArgumentException();
+    }
+
+    // Compares two random healthy members and takes the better one, which
+    // avoids stampeding onto a single "best" member between updates.
+    private Member choose(List<Member> candidates) {
+        int size = candidates.size();
+        if (size == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(size);
+        int j = random.nextInt(size - 1);
+        if (j >= i) {
+            j++;
+        }
+        Member a = candidates.get(i);
+        Member b = candidates.get(j);
+        return a.score() <= b.score() ? a : b;
+    }
+
+    public Connection checkOut() throws SQLException {
+        List<Member> candidates = new ArrayList<>(members.size());
+        for (Member member : members) {
+            if (member.ejected == false) {
+                candidates.add(member);
+            }
+        }
+        SQLException failure = null;
+        // fall over to the remaining members before giving up
+        while (candidates.isEmpty() == false) {
+            Member member = choose(candidates);
+            member.outstanding.incrementAndGet();
+            long start = System.nanoTime();
+            ConnectionPool.Pooled pooled = null;
+            try {
+                pooled = member.pool.borrow();
+            } catch (SQLException e) {
+                member.failed(e);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+                candidates.remove(member);
+                continue;
+            } finally {
+                if (pooled == null) {
+                    member.outstanding.decrementAndGet();
+                }
+            }
+            Connection con = pooled.getConnection();
+            // only what this check-out discarded, not concurrent ones
+            if (pooled.getFailedValidations() == 0) {
+                member.succeeded();
+            } else {
+                // the pool replaced them, but the member is unhealthy
+                member.failed(new SQLException(
+                        "Connection failed validation"));
+            }
+            borrowed.put(con, new Loan(member, start));
+            return con;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        throw new SQLException("No healthy member is available");
+    }
+
+    public void checkIn(Connection con) throws SQLException {
+        Loan loan = borrowed.remove(con);
+        if (loan == null) {
+            throw new IllegalArgumentException(
+                    "Connection was not checked out from this pool");
+        }
+        Member member = loan.member;
+        member.returned(System.nanoTime() - loan.start);
+        member.outstanding.decrementAndGet();
+        member.pool.checkIn(con);
+    }
+
+    public void setPolicy(Policy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException();
+        }
+        this.policy = policy;
+    }
+
+    // consecutive failed check-outs before a member is ejected; see the
+    // class comment for what fails
+    public void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.failureThreshold = failureThreshold;
+    }
+
+    public void setProbeInterval(int probeInterval, TimeUnit timeUnit) {
+        Lock lock = configLock;
+        lock.lock();
+        try {
+            this.probeInterval = Math.max(1, timeUnit.toMillis(probeInterval));
+            reschedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reschedule() {
+        if (probing != null) {
+            probing.cancel(false);
+        }
+        if (executor.isShutdown() == false) {
+            probing = executor.scheduleWithFixedDelay(prober, probeInterval,
+                    probeInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        Lock lock = configLock;
+        lock.lock();
+        try {
+            executor.shutdownNow();
+            SQLException failure = null;
+            for (Member member : members) {
+                try {
+                    member.pool.close();
+                } catch (SQLException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getProbeInterval() {
+        return probeInterval;
+    }
+}
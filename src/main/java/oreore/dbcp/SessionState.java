@@ -0,0 +1,177 @@
+package oreore.dbcp;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+// Mirrors the session properties a borrower may change, so that getters and
+// setters which change nothing skip the driver, and check-in restores only
+// what was modified. Each baseline is read from the driver the first time
+// the property is touched, once per physical connection. Confined like
+// StatementCache.
+final class SessionState {
+
+    private static final int AUTO_COMMIT = 1;
+    private static final int READ_ONLY = 2;
+    private static final int TRANSACTION_ISOLATION = 4;
+    private static final int CATALOG = 8;
+    private static final int SCHEMA = 16;
+    private static final int NETWORK_TIMEOUT = 32;
+
+    // properties whose baseline has been read
+    private int loaded;
+    private boolean autoCommit;
+    private boolean initialAutoCommit;
+    private boolean readOnly;
+    private boolean initialReadOnly;
+    private int transactionIsolation;
+    private int initialTransactionIsolation;
+    private String catalog;
+    private String initialCatalog;
+    private String schema;
+    private String initialSchema;
+    private int networkTimeout;
+    private int initialNetworkTimeout;
+    private Executor networkTimeoutExecutor;
+
+    private boolean load(int property) {
+        if ((loaded & property) != 0) {
+            return false;
+        }
+        loaded |= property;
+        return true;
+    }
+
+    public boolean getAutoCommit(Connection con) throws SQLException {
+        if (load(AUTO_COMMIT)) {
+            initialAutoCommit = autoCommit = con.getAutoCommit();
+        }
+        return autoCommit;
+    }
+
+    public void setAutoCommit(Connection con, boolean autoCommit)
+            throws SQLException {
+        if (getAutoCommit(con) != autoCommit) {
+            con.setAutoCommit(autoCommit);
+            this.autoCommit = autoCommit;
+        }
+    }
+
+    public boolean isReadOnly(Connection con) throws SQLException {
+        if (load(READ_ONLY)) {
+            initialReadOnly = readOnly = con.isReadOnly();
+        }
+        return readOnly;
+    }
+
+    public void setReadOnly(Connection con, boolean readOnly)
+            throws SQLException {
+        if (isReadOnly(con) != readOnly) {
+            con.setReadOnly(readOnly);
+            this.readOnly = readOnly;
+        }
+    }
+
+    public int getTransactionIsolation(Connection con) throws SQLException {
+        if (load(TRANSACTION_ISOLATION)) {
+            initialTransactionIsolation = transactionIsolation = con
+                    .getTransactionIsolation();
+        }
+        return transactionIsolation;
+    }
+
+    public void setTransactionIsolation(Connection con, int level)
+            throws SQLException {
+        if (getTransactionIsolation(con) != level) {
+            con.setTransactionIsolation(level);
+            this.transactionIsolation = level;
+        }
+    }
+
+    public String getCatalog(Connection con) throws SQLException {
+        if (load(CATALOG)) {
+            initialCatalog = catalog = con.getCatalog();
+        }
+        return catalog;
+    }
+
+    public void setCatalog(Connection con, String catalog)
+            throws SQLException {
+        if (Objects.equals(getCatalog(con), catalog) == false) {
+            con.setCatalog(catalog);
+            this.catalog = catalog;
+        }
+    }
+
+    public String getSchema(Connection con) throws SQLException {
+        if (load(SCHEMA)) {
+            initialSchema = schema = con.getSchema();
+        }
+        return schema;
+    }
+
+    public void setSchema(Connection con, String schema) throws SQLException {
+        if (Objects.equals(getSchema(con), schema) == false) {
+            con.setSchema(schema);
+            this.schema = schema;
+        }
+    }
+
+    public int getNetworkTimeout(Connection con) throws SQLException {
+        if (load(NETWORK_TIMEOUT)) {
+            initialNetworkTimeout = networkTimeout = con.getNetworkTimeout();
+        }
+        return networkTimeout;
+    }
+
+    public void setNetworkTimeout(Connection con, Executor executor,
+            int milliseconds) throws SQLException {
+        if (getNetworkTimeout(con) != milliseconds) {
+            con.setNetworkTimeout(executor, milliseconds);
+            this.networkTimeout = milliseconds;
+            // needed again to restore the baseline
+            this.networkTimeoutExecutor = executor;
+        }
+    }
+
+    public void reset(Connection con) throws SQLException {
+        if (loaded == 0) {
+            return;
+        }
+        if ((loaded & AUTO_COMMIT) != 0 && autoCommit != initialAutoCommit) {
+            if (autoCommit == false) {
+                // switching auto-commit on would commit what the borrower
+                // left unfinished
+                con.rollback();
+            }
+            con.setAutoCommit(initialAutoCommit);
+            autoCommit = initialAutoCommit;
+        }
+        if ((loaded & READ_ONLY) != 0 && readOnly != initialReadOnly) {
+            con.setReadOnly(initialReadOnly);
+            readOnly = initialReadOnly;
+        }
+        if ((loaded & TRANSACTION_ISOLATION) != 0
+                && transactionIsolation != initialTransactionIsolation) {
+            con.setTransactionIsolation(initialTransactionIsolation);
+            transactionIsolation = initialTransactionIsolation;
+        }
+        if ((loaded & CATALOG) != 0
+                && Objects.equals(catalog, initialCatalog) == false) {
+            con.setCatalog(initialCatalog);
+            catalog = initialCatalog;
+        }
+        if ((loaded & SCHEMA) != 0
+                && Objects.equals(schema, initialSchema) == false) {
+            con.setSchema(initialSchema);
+            schema = initialSchema;
+        }
+        if ((loaded & NETWORK_TIMEOUT) != 0
+                && networkTimeout != initialNetworkTimeout) {
+            con.setNetworkTimeout(networkTimeoutExecutor,
+                    initialNetworkTimeout);
+            networkTimeout = initialNetworkTimeout;
+        }
+    }
+}
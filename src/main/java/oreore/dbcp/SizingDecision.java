@@ -0,0 +1,58 @@
+package oreore.dbcp;
+
+// A change of the number of connections the adaptive sizer keeps warm, with
+// the observations that led to it.
+public final class SizingDecision {
+
+    private final long time;
+    private final double demand;
+    private final int active;
+    private final int waiting;
+    private final int previousTarget;
+    private final int target;
+
+    SizingDecision(long time, double demand, int active, int waiting,
+            int previousTarget, int target) {
+        this.time = time;
+        this.demand = demand;
+        this.active = active;
+        this.waiting = waiting;
+        this.previousTarget = previousTarget;
+        this.target = target;
+    }
+
+    // as System.currentTimeMillis
+    public long getTime() {
+        return time;
+    }
+
+    // moving average of connections in use plus borrowers waiting
+    public double getDemand() {
+        return demand;
+    }
+
+    public int getActive() {
+        return active;
+    }
+
+    public int getWaiting() {
+        return waiting;
+    }
+
+    public int getPreviousTarget() {
+        return previousTarget;
+    }
+
+    // connections in use and idle that the pool keeps open
+    public int getTarget() {
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        return "SizingDecision(time=" + time + ", demand="
+                + String.format("%.2f", demand) + ", active=" + active
+                + ", waiting=" + waiting + ", previousTarget="
+                + previousTarget + ", target=" + target + ")";
+    }
+}
@@ -0,0 +1,110 @@
+package oreore.dbcp;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Confined to whoever holds the physical connection: the borrower while it
+// is checked out, the pool while it is being discarded.
+final class StatementCache {
+
+    static final class Key {
+
+        private final String sql;
+        private final int resultSetType;
+        private final int resultSetConcurrency;
+        private final int resultSetHoldability;
+
+        public Key(String sql, int resultSetType, int resultSetConcurrency,
+                int resultSetHoldability) {
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.resultSetHoldability = resultSetHoldability;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = sql.hashCode();
+            hash = hash * 31 + resultSetType;
+            hash = hash * 31 + resultSetConcurrency;
+            hash = hash * 31 + resultSetHoldability;
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                Key other = (Key) obj;
+                return sql.equals(other.sql)
+                        && resultSetType == other.resultSetType
+                        && resultSetConcurrency == other.resultSetConcurrency
+                        && resultSetHoldability == other.resultSetHoldability;
+            }
+            return false;
+        }
+    }
+
+    private final int maxSize;
+    // access order, so the first entry is the least recently used one
+    private final Map<Key, PreparedStatement> statements = new LinkedHashMap<>(
+            16, 0.75f, true);
+    private boolean closed;
+
+    public StatementCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    // removes the statement so that it is never shared by two callers
+    public PreparedStatement take(Key key) {
+        return statements.remove(key);
+    }
+
+    public void release(Key key, PreparedStatement ps) throws SQLException {
+        if (closed || ps.isClosed()) {
+            ps.close();
+            return;
+        }
+        ps.clearParameters();
+        PreparedStatement old = statements.put(key, ps);
+        if (old != null) {
+            old.close();
+        }
+        if (statements.size() > maxSize) {
+            Iterator<PreparedStatement> it = statements.values().iterator();
+            PreparedStatement eldest = it.next();
+            it.remove();
+            eldest.close();
+        }
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    public void close() throws SQLException {
+        closed = true;
+        SQLException failure = null;
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        statements.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
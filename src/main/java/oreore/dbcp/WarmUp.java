@@ -0,0 +1,99 @@
+package oreore.dbcp;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Progress of ConnectionPool.warmUp. Each connection is attempted once; one
+// that fails, or that maxConcurrentOpens holds back, is left to the
+// background filler.
+public final class WarmUp {
+
+    private final int target;
+    private final AtomicInteger remaining;
+    private final AtomicInteger workers;
+    private final AtomicInteger opened = new AtomicInteger();
+    private final Queue<SQLException> failures = new ConcurrentLinkedQueue<>();
+    private final CountDownLatch first = new CountDownLatch(1);
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    WarmUp(int target, int workers) {
+        this.target = target;
+        this.remaining = new AtomicInteger(target);
+        this.workers = new AtomicInteger(workers);
+        if (workers == 0) {
+            finish();
+        }
+    }
+
+    boolean claim() {
+        return remaining.getAndDecrement() > 0;
+    }
+
+    void opened() {
+        opened.incrementAndGet();
+        first.countDown();
+    }
+
+    void failed(SQLException e) {
+        failures.add(e);
+    }
+
+    // true for the last worker, which has finished the warm-up
+    boolean leave() {
+        if (workers.decrementAndGet() == 0) {
+            finish();
+            return true;
+        }
+        return false;
+    }
+
+    private void finish() {
+        first.countDown();
+        done.countDown();
+    }
+
+    // connections missing below minPoolSize when the warm-up began
+    public int getTarget() {
+        return target;
+    }
+
+    public int getOpened() {
+        return opened.get();
+    }
+
+    public int getFailed() {
+        return failures.size();
+    }
+
+    public List<SQLException> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    // Returns once a connection is idle in the pool or the warm-up is over,
+    // whichever comes first; false on timeout.
+    public boolean awaitFirst(long timeout, TimeUnit timeUnit)
+            throws InterruptedException {
+        return first.await(timeout, timeUnit);
+    }
+
+    public boolean await(long timeout, TimeUnit timeUnit)
+            throws InterruptedException {
+        return done.await(timeout, timeUnit);
+    }
+
+    @Override
+    public String toString() {
+        return "WarmUp(target=" + target + ", opened=" + opened.get()
+                + ", failed=" + failures.size() + ", done=" + isDone() + ")";
+    }
+}
@@ -1,10 +1,9 @@
 package oreore.tx;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sql.DataSource;
@@ -13,30 +12,58 @@ public class LocalTransaction {
 
     private final class Context {
 
-        private final Connection con;
-        private final ConnectionHandler handler;
+        // null until the first getConnection when lazyConnection is set
+        private Connection con;
+        private TransactionalConnection transactional;
         private boolean rollbackOnly;
+        private final Ownership ownership = new Ownership();
 
         public Context() throws SQLException {
-            con = dataSource.getConnection();
-            con.setAutoCommit(false);
+            if (lazyConnection == false) {
+                open();
+            }
+        }
 
-            ClassLoader loader = getClass().getClassLoader();
-            handler = new ConnectionHandler(con, loader);
+        private void open() throws SQLException {
+            Connection con = dataSource.getConnection();
+            con.setAutoCommit(false);
+            this.con = con;
+            this.transactional = new TransactionalConnection(con, ownership);
         }
 
         public void commit() throws SQLException {
+            if (con == null) {
+                return;
+            }
             con.commit();
             con.setAutoCommit(true);
             con.close();
         }
 
         public void rollback() throws SQLException {
+            if (con == null) {
+                return;
+            }
             con.rollback();
             con.setAutoCommit(true);
             con.close();
         }
 
+        public Savepoint setSavepoint() throws SQLException {
+            if (con == null) {
+                open();
+            }
+            return con.setSavepoint();
+        }
+
+        public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+            con.releaseSavepoint(savepoint);
+        }
+
+        public void rollback(Savepoint savepoint) throws SQLException {
+            con.rollback(savepoint);
+        }
+
         public void setRollbackOnly() {
             rollbackOnly = true;
         }
@@ -45,130 +72,238 @@ public class LocalTransaction {
             return rollbackOnly;
         }
 
-        public Connection getConnection() {
-            return handler.get();
+        public Connection getConnection() throws SQLException {
+            if (con == null) {
+                open();
+            }
+            return transactional;
         }
     }
 
-    private static class ConnectionHandler implements InvocationHandler {
+    // One begin on this thread. Scopes that join or nest share the Context
+    // of the scope below; only the scope that created a Context ends it.
+    private static final class Scope {
 
-        private final Connection con;
-        private final Connection proxy;
+        private final Scope outer;
+        private final Context context;
+        private final boolean owner;
+        // set for NESTED
+        private final Savepoint savepoint;
+        // committed or rolled back, possibly by a wrapped task on another
+        // thread while this one still holds the scope
+        private volatile boolean ended;
 
-        public ConnectionHandler(Connection con, ClassLoader loader) {
-            this.con = con;
-            this.proxy = (Connection) Proxy.newProxyInstance(loader,
-                    new Class<?>[] { Connection.class }, this);
+        public Scope(Scope outer, Context context, Savepoint savepoint) {
+            this.outer = outer;
+            this.context = context;
+            this.owner = outer == null || outer.context != context;
+            this.savepoint = savepoint;
         }
 
-        public Connection get() {
-            return proxy;
-        }
-
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args)
-                throws Throwable {
-
-            if (method.equals(Connection.class.getMethod("commit"))) {
-                throw new SQLException();
-            } else if (method.equals(Connection.class.getMethod("rollback"))) {
-                throw new SQLException();
-            } else if (method.equals(Connection.class.getMethod("close"))) {
-                throw new SQLException();
-            }
-
-            if (method.equals(Object.class.getMethod("toString"))) {
-                return "Transactional(" + con + ")";
-            } else if (method.equals(Object.class.getMethod("hashCode"))) {
-                return con.hashCode();
-            } else if (method.equals(Object.class.getMethod("equals",
-                    Object.class))) {
-                Object other = args[0];
-                if (other != null && Proxy.isProxyClass(other.getClass())) {
-                    InvocationHandler handler = Proxy
-                            .getInvocationHandler(other);
-                    if (ConnectionHandler.class.isAssignableFrom(handler
-                            .getClass())) {
-                        return con
-                                .equals(ConnectionHandler.class.cast(handler).con);
-                    }
+        // returns false when a rollback-only transaction was rolled back
+        public boolean commit() throws SQLException {
+            if (savepoint != null) {
+                context.releaseSavepoint(savepoint);
+            } else if (owner) {
+                if (context.isRollbackOnly()) {
+                    context.rollback();
+                    return false;
                 }
-                return false;
+                context.commit();
             }
+            return true;
+        }
 
-            return method.invoke(con, args);
+        public void rollback() throws SQLException {
+            if (savepoint != null) {
+                context.rollback(savepoint);
+            } else if (owner) {
+                context.rollback();
+            } else {
+                // the owner must not commit what a participant gave up on
+                context.setRollbackOnly();
+            }
         }
     }
 
     private static final Logger logger = Logger.getLogger(
             LocalTransaction.class.getName(), "oreore");
-    private final ThreadLocal<Context> contexts = new ThreadLocal<>();
+    private final ThreadLocal<Scope> scopes = new ThreadLocal<>();
     private final DataSource dataSource;
+    private volatile boolean lazyConnection;
 
     public LocalTransaction(DataSource dataSource) {
         this.dataSource = dataSource;
     }
 
     public void begin() throws SQLException {
-        if (contexts.get() != null) {
+        if (scope() != null) {
             throw new IllegalStateException("Transaction is begun");
         }
-        Context context = new Context();
-        contexts.set(context);
+        begin(Propagation.REQUIRES_NEW);
+    }
+
+    public void begin(Propagation propagation) throws SQLException {
+        Scope outer = scope();
+        if (outer != null) {
+            outer.context.ownership.acquire();
+        }
+        Scope scope;
+        if (outer == null || propagation == Propagation.REQUIRES_NEW) {
+            scope = new Scope(outer, new Context(), null);
+        } else if (propagation == Propagation.NESTED) {
+            scope = new Scope(outer, outer.context,
+                    outer.context.setSavepoint());
+        } else {
+            scope = new Scope(outer, outer.context, null);
+        }
+        scopes.set(scope);
         if (logger.isLoggable(Level.INFO)) {
-            logger.log(Level.INFO, "tx.begun", new Object[] { context });
+            logger.log(Level.INFO, "tx.begun", new Object[] { scope.context });
         }
     }
 
-    public void commit() throws SQLException {
-        Context context = contexts.get();
-        if (context == null) {
+    // The scope current on this thread, after dropping the scopes a wrapped
+    // task has ended on another thread; the scope they were begun in is
+    // resumed, as it would have been had they ended here.
+    private Scope scope() {
+        Scope scope = scopes.get();
+        if (scope == null || scope.ended == false) {
+            return scope;
+        }
+        do {
+            scope = scope.outer;
+        } while (scope != null && scope.ended);
+        if (scope == null) {
+            scopes.remove();
+        } else {
+            scopes.set(scope);
+        }
+        return scope;
+    }
+
+    private Scope current() {
+        Scope scope = scope();
+        if (scope == null) {
             throw new IllegalStateException("Transaction must be begun");
         }
-        context.commit();
-        contexts.remove();
+        scope.context.ownership.acquire();
+        return scope;
+    }
+
+    private Scope bind(Scope scope) {
+        scope.context.ownership.acquire();
+        Scope previous = scopes.get();
+        scopes.set(scope);
+        return previous;
+    }
+
+    private void unbind(Scope scope, Scope previous) {
+        if (previous == null) {
+            scopes.remove();
+        } else {
+            scopes.set(previous);
+        }
+        scope.context.ownership.release();
+    }
+
+    // Hands the current transaction to a task that may run on another
+    // thread. The caller gives the transaction up until it next uses it, and
+    // the task fails if the transaction is still in use when it starts, so
+    // the connection is never used by two threads at once.
+    public Runnable wrap(final Runnable task) {
+        final Scope scope = current();
+        scope.context.ownership.release();
+        return new Runnable() {
+            @Override
+            public void run() {
+                Scope previous = bind(scope);
+                try {
+                    task.run();
+                } finally {
+                    unbind(scope, previous);
+                }
+            }
+        };
+    }
+
+    public <V> Callable<V> wrap(final Callable<V> task) {
+        final Scope scope = current();
+        scope.context.ownership.release();
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                Scope previous = bind(scope);
+                try {
+                    return task.call();
+                } finally {
+                    unbind(scope, previous);
+                }
+            }
+        };
+    }
+
+    // resumes the scope that was current before this one began
+    private void end(Scope scope) {
+        scope.ended = true;
+        if (scope.outer == null) {
+            scopes.remove();
+        } else {
+            scopes.set(scope.outer);
+        }
+    }
+
+    public void commit() throws SQLException {
+        Scope scope = current();
+        boolean committed = scope.commit();
+        end(scope);
+        if (committed == false) {
+            if (logger.isLoggable(Level.INFO)) {
+                logger.log(Level.INFO, "tx.rolledback",
+                        new Object[] { scope.context });
+            }
+            throw new SQLException(
+                    "Transaction has been marked rollback-only");
+        }
         if (logger.isLoggable(Level.INFO)) {
-            logger.log(Level.INFO, "tx.committed", new Object[] { context });
+            logger.log(Level.INFO, "tx.committed",
+                    new Object[] { scope.context });
         }
     }
 
     public void rollback() throws SQLException {
-        Context context = contexts.get();
-        if (context == null) {
-            throw new IllegalStateException("Transaction must be begun");
-        }
-        context.rollback();
-        contexts.remove();
+        Scope scope = current();
+        scope.rollback();
+        end(scope);
         if (logger.isLoggable(Level.INFO)) {
-            logger.log(Level.INFO, "tx.rolledback", new Object[] { context });
+            logger.log(Level.INFO, "tx.rolledback",
+                    new Object[] { scope.context });
         }
     }
 
     public boolean isActive() {
-        return contexts.get() != null;
+        return scope() != null;
     }
 
     public void setRollbackOnly() {
-        Context context = contexts.get();
-        if (context == null) {
-            throw new IllegalStateException("Transaction must be begun");
-        }
-        context.setRollbackOnly();
+        current().context.setRollbackOnly();
     }
 
     public boolean isRollbackOnly() {
-        Context context = contexts.get();
-        if (context == null) {
-            throw new IllegalStateException("Transaction must be begun");
-        }
-        return context.isRollbackOnly();
+        return current().context.isRollbackOnly();
     }
 
-    public Connection getConnection() {
-        Context context = contexts.get();
-        if (context == null) {
-            throw new IllegalStateException("Transaction must be begun");
-        }
-        return context.getConnection();
+    // Defers borrowing a connection from begin to the first getConnection,
+    // so a transaction that never issues SQL does not touch the DataSource.
+    public void setLazyConnection(boolean lazyConnection) {
+        this.lazyConnection = lazyConnection;
+    }
+
+    public boolean isLazyConnection() {
+        return lazyConnection;
+    }
+
+    public Connection getConnection() throws SQLException {
+        return current().context.getConnection();
     }
 }
@@ -1,55 +1,94 @@
 package oreore.tx;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
 import javax.sql.DataSource;
 
 public class LocalTransactionalDataSourceFactory {
 
-    private static class TransactionalDataSourceHandler implements
-            InvocationHandler {
+    private static class LocalTransactionalDataSourceImpl implements
+            LocalTransactionalDataSource {
 
         private final DataSource dataSource;
 
         private final LocalTransaction transaction;
 
-        private final LocalTransactionalDataSource proxy;
-
-        public TransactionalDataSourceHandler(DataSource dataSource,
-                ClassLoader loader) {
+        public LocalTransactionalDataSourceImpl(DataSource dataSource,
+                boolean lazyConnection) {
             this.dataSource = dataSource;
             this.transaction = new LocalTransaction(dataSource);
-            this.proxy = (LocalTransactionalDataSource) Proxy
-                    .newProxyInstance(
-                            loader,
-                            new Class<?>[] { LocalTransactionalDataSource.class },
-                            this);
+            transaction.setLazyConnection(lazyConnection);
         }
 
-        public LocalTransactionalDataSource get() {
-            return proxy;
+        @Override
+        public LocalTransaction getTransaction() {
+            return transaction;
         }
 
         @Override
-        public Object invoke(Object proxy, Method method, Object[] args)
-                throws Throwable {
+        public Connection getConnection() throws SQLException {
+            return transaction.getConnection();
+        }
 
-            if (method.equals(DataSource.class.getMethod("getConnection"))) {
-                return transaction.getConnection();
-            }
+        @Override
+        public Connection getConnection(String username, String password)
+                throws SQLException {
+            return dataSource.getConnection(username, password);
+        }
+
+        @Override
+        public PrintWriter getLogWriter() throws SQLException {
+            return dataSource.getLogWriter();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) throws SQLException {
+            dataSource.setLogWriter(out);
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) throws SQLException {
+            dataSource.setLoginTimeout(seconds);
+        }
 
-            if (method.equals(LocalTransactionalDataSource.class
-                    .getMethod("getTransaction"))) {
-                return transaction;
+        @Override
+        public int getLoginTimeout() throws SQLException {
+            return dataSource.getLoginTimeout();
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            return dataSource.getParentLogger();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            if (iface.isInstance(this)) {
+                return iface.cast(this);
             }
+            return dataSource.unwrap(iface);
+        }
 
-            return method.invoke(dataSource, args);
+        @Override
+        public boolean isWrapperFor(Class<?> iface) throws SQLException {
+            return iface.isInstance(this) || dataSource.isWrapperFor(iface);
         }
     }
 
+    private boolean lazyConnection = false;
+
+    public void setLazyConnection(boolean lazyConnection) {
+        this.lazyConnection = lazyConnection;
+    }
+
+    public boolean isLazyConnection() {
+        return lazyConnection;
+    }
+
     public LocalTransactionalDataSource create(DataSource dataSource) {
-        ClassLoader loader = getClass().getClassLoader();
-        return new TransactionalDataSourceHandler(dataSource, loader).get();
+        return new LocalTransactionalDataSourceImpl(dataSource, lazyConnection);
     }
 }
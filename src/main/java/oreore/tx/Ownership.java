@@ -0,0 +1,29 @@
+package oreore.tx;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// Lets one thread at a time use a transaction. The thread that begins it
+// owns it; a released transaction is taken by the next thread that uses it.
+final class Ownership {
+
+    private final AtomicReference<Thread> owner = new AtomicReference<>(
+            Thread.currentThread());
+
+    public void acquire() {
+        if (tryAcquire() == false) {
+            throw new IllegalStateException(
+                    "Transaction is in use by another thread");
+        }
+    }
+
+    public boolean tryAcquire() {
+        Thread current = Thread.currentThread();
+        Thread owner = this.owner.get();
+        return owner == current || (owner == null
+                && this.owner.compareAndSet(null, current));
+    }
+
+    public void release() {
+        owner.compareAndSet(Thread.currentThread(), null);
+    }
+}
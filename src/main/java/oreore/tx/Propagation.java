@@ -0,0 +1,15 @@
+package oreore.tx;
+
+public enum Propagation {
+
+    // joins the current transaction, or begins one when there is none
+    REQUIRED,
+
+    // suspends the current transaction and begins an independent one on
+    // another connection
+    REQUIRES_NEW,
+
+    // runs inside the current transaction up to a savepoint, so that it can
+    // be rolled back on its own
+    NESTED
+}
@@ -2,17 +2,34 @@ package oreore.dbcp;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 import oreore.mock.MockDataSourceProvider;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -55,6 +72,71 @@ public class ConnectionPoolTest {
         assertThat(con1, is(con2));
     }
 
+    @Test
+    public void test_threadAffinity() throws Exception {
+        cp.setThreadAffinity(true);
+
+        Connection con1 = cp.checkOut();
+        Connection con2 = cp.checkOut();
+        cp.checkIn(con1);
+        cp.checkIn(con2);
+
+        assertThat(cp.checkOut(), is(sameInstance(con2)));
+        assertThat(cp.checkOut(), is(sameInstance(con1)));
+        assertThat(cp.getPooledSize(), is(0));
+    }
+
+    @Test
+    public void test_checkIn_allocation() throws Exception {
+        Object threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(mx.isThreadAllocatedMemoryEnabled());
+        long id = Thread.currentThread().getId();
+        List<Connection> cons = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            cons.add(cp.checkOut());
+        }
+        for (Connection con : cons) {
+            cp.checkIn(con);
+        }
+
+        // by entry, as looking up a mock connection allocates in its proxy
+        long allocated = 0;
+        for (int i = 0; i < 10000; i++) {
+            ConnectionPool.Pooled pooled = cp.borrow();
+            long before = mx.getThreadAllocatedBytes(id);
+            cp.checkIn(pooled);
+            allocated += mx.getThreadAllocatedBytes(id) - before;
+        }
+
+        // a queue node per check-in would come to hundreds of kilobytes
+        assertTrue(String.valueOf(allocated), allocated < 16 * 1024);
+    }
+
+    @Test
+    public void test_threadAffinity_steal() throws Exception {
+        cp.setThreadAffinity(true);
+
+        final Connection con = cp.checkOut();
+        cp.checkIn(con);
+
+        Connection stolen = executor.submit(new Callable<Connection>() {
+
+            @Override
+            public Connection call() throws Exception {
+                return cp.checkOut();
+            }
+        }).get();
+
+        assertThat(stolen, is(sameInstance(con)));
+        assertThat(cp.getPooledSize(), is(0));
+
+        cp.checkIn(stolen);
+        assertThat(cp.checkOut(), is(sameInstance(con)));
+        assertThat(cp.getPooledSize(), is(0));
+    }
+
     @Test
     public void test_minPoolSize() throws Exception {
         assertThat(cp.getPooledSize(), is(0));
@@ -62,6 +144,33 @@ public class ConnectionPoolTest {
         assertThat(cp.getPooledSize(), is(1));
     }
 
+    @Test
+    public void test_minPoolSize_openOutsideLock() throws Exception {
+        cp.setMinPoolSize(1);
+        Connection idle = provider.getMockConnectionProviders().get(0).get();
+
+        CountDownLatch gate = new CountDownLatch(1);
+        provider.setGate(gate);
+        Future<Void> filling = executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                cp.setMinPoolSize(2);
+                return null;
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertThat(filling.isDone(), is(false));
+
+        cp.setMaxPoolSize(10);
+        assertThat(cp.checkOut(), is(sameInstance(idle)));
+
+        gate.countDown();
+        filling.get(1, TimeUnit.SECONDS);
+        assertThat(cp.getPooledSize(), is(2));
+        assertThat(provider.getMockConnectionProviders().size(), is(3));
+    }
+
     @Test
     public void test_maxPoolSize() throws Exception {
         Connection con1 = cp.checkOut();
@@ -98,6 +207,81 @@ public class ConnectionPoolTest {
         assertThat(con2.isClosed(), is(false));
     }
 
+    @Test
+    public void test_maxTotalSize() throws Exception {
+        cp.setMaxTotalSize(1);
+        cp.setCheckOutTimeout(50, TimeUnit.MILLISECONDS);
+
+        Connection con = cp.checkOut();
+        try {
+            cp.checkOut();
+            fail();
+        } catch (SQLTimeoutException expected) {}
+
+        cp.checkIn(con);
+        assertThat(cp.checkOut(), is(sameInstance(con)));
+        assertThat(provider.getMockConnectionProviders().size(), is(1));
+    }
+
+    @Test
+    public void test_maxTotalSize_handOff() throws Exception {
+        cp.setMaxTotalSize(2);
+
+        Connection con1 = cp.checkOut();
+        Connection con2 = cp.checkOut();
+
+        Callable<Connection> task = new Callable<Connection>() {
+
+            @Override
+            public Connection call() throws Exception {
+                return cp.checkOut();
+            }
+        };
+        Future<Connection> waiter1 = executor.submit(task);
+        TimeUnit.MILLISECONDS.sleep(50);
+        Future<Connection> waiter2 = executor.submit(task);
+        TimeUnit.MILLISECONDS.sleep(50);
+
+        assertThat(waiter1.isDone(), is(false));
+        assertThat(waiter2.isDone(), is(false));
+
+        cp.checkIn(con2);
+        assertThat(waiter1.get(1, TimeUnit.SECONDS), is(sameInstance(con2)));
+        assertThat(waiter2.isDone(), is(false));
+
+        cp.checkIn(con1);
+        assertThat(waiter2.get(1, TimeUnit.SECONDS), is(sameInstance(con1)));
+
+        assertThat(cp.getPooledSize(), is(0));
+        assertThat(provider.getMockConnectionProviders().size(), is(2));
+    }
+
+    @Test
+    public void test_maxTotalSize_discard() throws Exception {
+        cp.setMaxTotalSize(1);
+        cp.setMaxPoolSize(0);
+
+        Connection con1 = cp.checkOut();
+        Future<Connection> waiter = executor.submit(new Callable<Connection>() {
+
+            @Override
+            public Connection call() throws Exception {
+                return cp.checkOut();
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertThat(waiter.isDone(), is(false));
+
+        cp.setMaxTotalSize(0);
+        cp.checkIn(con1);
+        cp.setMaxTotalSize(1);
+        assertThat(con1.isClosed(), is(true));
+
+        Connection con2 = waiter.get(1, TimeUnit.SECONDS);
+        assertThat(con2, is(not(sameInstance(con1))));
+        assertThat(con2.isClosed(), is(false));
+    }
+
     @Test
     public void test_validate_setMaxPoolSize() throws Exception {
         cp.setMinPoolSize(2);
@@ -151,6 +335,795 @@ public class ConnectionPoolTest {
         assertThat(cp.getPooledSize(), is(0));
     }
 
+    @Test
+    public void test_timeout_checkInResetsIdleTime() throws Exception {
+        cp.setTimeout(200, TimeUnit.MILLISECONDS);
+
+        Connection con = cp.checkOut();
+        cp.checkIn(con);
+        TimeUnit.MILLISECONDS.sleep(120);
+        cp.checkIn(cp.checkOut());
+        TimeUnit.MILLISECONDS.sleep(120);
+
+        assertThat(con.isClosed(), is(false));
+        assertThat(cp.getPooledSize(), is(1));
+
+        TimeUnit.MILLISECONDS.sleep(250);
+
+        assertThat(con.isClosed(), is(true));
+        assertThat(cp.getPooledSize(), is(0));
+    }
+
+    @Test
+    public void test_testOnBorrow() throws Exception {
+        cp.setTestOnBorrow(true);
+        cp.setValidationInterval(0, TimeUnit.MILLISECONDS);
+
+        Connection con1 = cp.checkOut();
+        cp.checkIn(con1);
+        provider.getMockConnectionProviders().get(0).setValid(false);
+        Connection con2 = cp.checkOut();
+
+        assertThat(con2, is(not(con1)));
+        assertThat(con1.isClosed(), is(true));
+        assertThat(provider.getMockConnectionProviders().get(0)
+                .getValidationCount(), is(1));
+    }
+
+    @Test
+    public void test_testOnBorrow_validationTimeout() throws Exception {
+        cp.setTestOnBorrow(true);
+        cp.setValidationInterval(0, TimeUnit.MILLISECONDS);
+        assertThat(cp.getValidationTimeout(), is(5));
+
+        cp.checkIn(cp.checkOut());
+        cp.checkIn(cp.checkOut());
+
+        // bounded by default, as 0 means no timeout to the driver
+        assertThat(provider.getMockConnectionProviders().get(0)
+                .getValidationTimeout(), is(5));
+
+        cp.setValidationTimeout(1500, TimeUnit.MILLISECONDS);
+        cp.checkIn(cp.checkOut());
+        assertThat(provider.getMockConnectionProviders().get(0)
+                .getValidationTimeout(), is(2));
+    }
+
+    @Test
+    public void test_testOnBorrow_skipRecentlyUsed() throws Exception {
+        cp.setTestOnBorrow(true);
+        cp.setValidationInterval(1, TimeUnit.MINUTES);
+
+        Connection con1 = cp.checkOut();
+        cp.checkIn(con1);
+        Connection con2 = cp.checkOut();
+
+        assertThat(con2, is(con1));
+        assertThat(provider.getMockConnectionProviders().get(0)
+                .getValidationCount(), is(0));
+    }
+
+    @Test
+    public void test_testOnBorrow_handOff() throws Exception {
+        cp.setMaxTotalSize(1);
+        cp.setTestOnBorrow(true);
+        cp.setValidationInterval(0, TimeUnit.MILLISECONDS);
+
+        final Connection con1 = cp.checkOut();
+        final List<Thread> borrower = new CopyOnWriteArrayList<>();
+        Future<Connection> future = executor.submit(new Callable<Connection>() {
+            @Override
+            public Connection call() throws Exception {
+                borrower.add(Thread.currentThread());
+                return cp.checkOut();
+            }
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (cp.getMetrics().getWaiting() < 1
+                && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        provider.getMockConnectionProviders().get(0).setValid(false);
+        cp.checkIn(con1);
+        Connection con2 = future.get(1, TimeUnit.SECONDS);
+
+        assertThat(con2, is(not(con1)));
+        assertThat(con1.isClosed(), is(true));
+        assertThat(provider.getMockConnectionProviders().get(0)
+                .getValidationThread(), is(borrower.get(0)));
+    }
+
+    @Test
+    public void test_testOnBorrow_handOffAsync() throws Exception {
+        cp.setMaxTotalSize(1);
+        cp.setTestOnBorrow(true);
+        cp.setValidationInterval(0, TimeUnit.MILLISECONDS);
+
+        Connection con1 = cp.checkOut();
+        CompletableFuture<Connection> future = cp.checkOutAsync();
+        provider.getMockConnectionProviders().get(0).setValid(false);
+        cp.checkIn(con1);
+        Connection con2 = future.get(1, TimeUnit.SECONDS);
+
+        assertThat(con2, is(not(con1)));
+        assertThat(con1.isClosed(), is(true));
+        assertThat(provider.getMockConnectionProviders().get(0)
+                .getValidationThread(), is(not(Thread.currentThread())));
+    }
+
+    @Test
+    public void test_metrics() throws Exception {
+        Connection con1 = cp.checkOut();
+        Connection con2 = cp.checkOut();
+        cp.checkIn(con1);
+
+        PoolMetrics.Snapshot snapshot = cp.getMetrics();
+        assertThat(snapshot.getCheckOuts(), is(2L));
+        assertThat(snapshot.getCreates(), is(2L));
+        assertThat(snapshot.getActive(), is(1));
+        assertThat(snapshot.getIdle(), is(1));
+        assertThat(snapshot.getWaiting(), is(0));
+        assertThat(snapshot.getWaitTime().getCount(), is(2L));
+        assertThat(snapshot.getHoldTime().getCount(), is(1L));
+        assertThat(snapshot.getConnectTime().getCount(), is(2L));
+
+        cp.setMaxPoolSize(0);
+        cp.checkIn(con2);
+
+        snapshot = cp.getMetrics();
+        assertThat(snapshot.getCloses(), is(2L));
+        assertThat(snapshot.getActive(), is(0));
+        assertThat(snapshot.getIdle(), is(0));
+        assertThat(snapshot.getHoldTime().getCount(), is(2L));
+    }
+
+    @Test
+    public void test_metrics_timeout() throws Exception {
+        cp.setMaxTotalSize(1);
+        cp.setCheckOutTimeout(10, TimeUnit.MILLISECONDS);
+        cp.checkOut();
+
+        try {
+            cp.checkOut();
+            fail();
+        } catch (SQLTimeoutException e) {
+        }
+
+        PoolMetrics.Snapshot snapshot = cp.getMetrics();
+        assertThat(snapshot.getTimeouts(), is(1L));
+        assertThat(snapshot.getCheckOuts(), is(1L));
+        assertThat(snapshot.getWaiting(), is(0));
+    }
+
+    @Test
+    public void test_leakDetection() throws Exception {
+        List<LogRecord> records = new CopyOnWriteArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getMessage().equals("dbcp.leak.detected")) {
+                    records.add(record);
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(PoolingDataSource.class.getName(),
+                "oreore");
+        logger.addHandler(handler);
+        try {
+            cp.setLeakTraceSampleRate(1);
+            cp.setLeakDetectionThreshold(50, TimeUnit.MILLISECONDS);
+            Connection con1 = cp.checkOut();
+            Connection con2 = cp.checkOut();
+            cp.checkIn(con2);
+
+            TimeUnit.MILLISECONDS.sleep(200);
+
+            assertThat(records.size(), is(1));
+            assertThat(records.get(0).getParameters()[0], is((Object) con1));
+            boolean borrowedHere = false;
+            for (StackTraceElement element : records.get(0).getThrown()
+                    .getStackTrace()) {
+                borrowedHere |= element.getMethodName().equals(
+                        "test_leakDetection");
+            }
+            assertThat(borrowedHere, is(true));
+            assertThat(cp.getMetrics().getLeaks(), is(1L));
+            assertThat(con1.isClosed(), is(false));
+        } finally {
+            logger.removeHandler(handler);
+        }
+    }
+
+    @Test
+    public void test_leakDetection_reclaim() throws Exception {
+        cp.setReclaimLeaks(true);
+        cp.setLeakDetectionThreshold(50, TimeUnit.MILLISECONDS);
+        Connection con1 = cp.checkOut();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((con1.isClosed() == false || cp.getMetrics().getActive() > 0)
+                && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertThat(con1.isClosed(), is(true));
+        assertThat(cp.getMetrics().getLeaks(), is(1L));
+
+        // the late check-in of the reclaimed connection is ignored
+        cp.checkIn(con1);
+        assertThat(cp.getPooledSize(), is(0));
+        assertThat(cp.getMetrics().getActive(), is(0));
+
+        Connection con2 = cp.checkOut();
+        assertThat(con2, is(not(con1)));
+        assertThat(con2.isClosed(), is(false));
+        cp.checkIn(con2);
+        assertThat(cp.getPooledSize(), is(1));
+        assertThat(cp.getMetrics().getActive(), is(0));
+    }
+
+    @Test
+    public void test_checkIn_unknownClosed() throws Exception {
+        Connection con = provider.get().getConnection();
+        con.close();
+
+        try {
+            cp.checkIn(con);
+            fail();
+        } catch (SQLException expected) {
+            assertThat(expected.getMessage(), is("Connection is closed"));
+        }
+        assertThat(cp.getPooledSize(), is(0));
+        assertThat(cp.getMetrics().getActive(), is(0));
+    }
+
+    @Test
+    public void test_stripes() throws Exception {
+        cp.close();
+        cp = new ConnectionPool(4);
+        cp.setDataSource(provider.get());
+        cp.setMaxPoolSize(8);
+
+        List<Connection> cons = cp.checkOut(10);
+        cp.checkIn(cons);
+
+        // a full home stripe spills over to its neighbours
+        assertThat(cp.getPooledSize(), is(8));
+        assertThat(cp.getMetrics().getCloses(), is(2L));
+
+        cp.setMaxPoolSize(3);
+
+        assertThat(cp.getPooledSize(), is(3));
+    }
+
+    @Test
+    public void test_stripes_steal() throws Exception {
+        cp.close();
+        cp = new ConnectionPool(4);
+        cp.setDataSource(provider.get());
+        final Connection con = cp.checkOut();
+        cp.checkIn(con);
+
+        for (int i = 0; i < 8; i++) {
+            Future<Connection> future = executor
+                    .submit(new Callable<Connection>() {
+                        @Override
+                        public Connection call() throws Exception {
+                            Connection con = cp.checkOut();
+                            cp.checkIn(con);
+                            return con;
+                        }
+                    });
+            assertThat(future.get(1, TimeUnit.SECONDS), is(con));
+        }
+        assertThat(provider.getMockConnectionProviders().size(), is(1));
+    }
+
+    @Test
+    public void test_stripes_minPoolSize() throws Exception {
+        cp.close();
+        cp = new ConnectionPool(4);
+        cp.setDataSource(provider.get());
+        cp.setMinPoolSize(6);
+
+        assertThat(cp.getPooledSize(), is(6));
+        assertThat(provider.getMockConnectionProviders().size(), is(6));
+
+        Connection con = cp.checkOut();
+        cp.checkIn(con);
+
+        assertThat(cp.getPooledSize(), is(6));
+    }
+
+    @Test
+    public void test_stripes_contention() throws Exception {
+        cp.close();
+        cp = new ConnectionPool(4);
+        cp.setDataSource(provider.get());
+        cp.setMaxPoolSize(4);
+        cp.setMaxTotalSize(6);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < 1000; j++) {
+                        cp.checkIn(cp.checkOut());
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        PoolMetrics.Snapshot snapshot = cp.getMetrics();
+        assertThat(snapshot.getActive(), is(0));
+        assertTrue(snapshot.getIdle() <= 4);
+        assertThat(snapshot.getCreates() - snapshot.getCloses(),
+                is((long) snapshot.getIdle()));
+    }
+
+    @Test
+    public void test_warmUp() throws Exception {
+        ExecutorService opener = Executors.newFixedThreadPool(8);
+        try {
+            cp.setAsyncExecutor(opener);
+            CountDownLatch gate = new CountDownLatch(1);
+            provider.setGate(gate);
+
+            WarmUp warmUp = cp.warmUp(10, 3);
+
+            assertThat(warmUp.getTarget(), is(10));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (provider.getConnecting() < 3
+                    && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(5);
+            }
+            assertThat(warmUp.awaitFirst(50, TimeUnit.MILLISECONDS),
+                    is(false));
+
+            gate.countDown();
+
+            assertThat(warmUp.await(5, TimeUnit.SECONDS), is(true));
+            assertThat(warmUp.getOpened(), is(10));
+            assertThat(warmUp.getFailed(), is(0));
+            assertThat(warmUp.awaitFirst(0, TimeUnit.MILLISECONDS), is(true));
+            assertThat(provider.getMaxConnecting(), is(3));
+            assertThat(cp.getPooledSize(), is(10));
+            assertThat(cp.getMinPoolSize(), is(10));
+        } finally {
+            opener.shutdown();
+        }
+    }
+
+    @Test
+    public void test_fill_close() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        provider.setGate(gate);
+        WarmUp warmUp = cp.warmUp(1, 1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (provider.getConnecting() < 1 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+
+        cp.close();
+        gate.countDown();
+
+        assertThat(warmUp.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(cp.getPooledSize(), is(0));
+        assertThat(provider.getMockConnectionProviders().get(0).isClosed(),
+                is(true));
+    }
+
+    @Test
+    public void test_fill_setDataSource() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        provider.setGate(gate);
+        WarmUp warmUp = cp.warmUp(1, 1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (provider.getConnecting() < 1 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+
+        MockDataSourceProvider replacement = new MockDataSourceProvider();
+        cp.setDataSource(replacement.get());
+        gate.countDown();
+
+        assertThat(warmUp.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(provider.getMockConnectionProviders().get(0).isClosed(),
+                is(true));
+        // the filler opens the replacement from the new DataSource
+        while (cp.getPooledSize() < 1 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertThat(cp.getPooledSize(), is(1));
+        Connection con = cp.checkOut();
+        assertThat(con, is(sameInstance(replacement
+                .getMockConnectionProviders().get(0).get())));
+    }
+
+    @Test
+    public void test_fill_inFlight() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        provider.setGate(gate);
+        cp.warmUp(1, 1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (provider.getConnecting() < 1 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+
+        // being opened, so active rather than idle
+        assertThat(cp.getPooledSize(), is(0));
+        assertThat(cp.getMetrics().getIdle(), is(0));
+        assertThat(cp.getMetrics().getActive(), is(1));
+
+        // a borrower waits for it instead of opening another
+        Future<Connection> future = executor.submit(new Callable<Connection>() {
+            @Override
+            public Connection call() throws Exception {
+                return cp.checkOut();
+            }
+        });
+        while (cp.getMetrics().getWaiting() < 1
+                && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertThat(cp.getMetrics().getWaiting(), is(1));
+        assertThat(provider.getConnecting(), is(1));
+        gate.countDown();
+
+        Connection con = future.get(5, TimeUnit.SECONDS);
+        assertThat(con, is(sameInstance(provider.getMockConnectionProviders()
+                .get(0).get())));
+    }
+
+    @Test
+    public void test_fill_retry() throws Exception {
+        provider.setDown(true);
+        WarmUp warmUp = cp.warmUp(1, 1);
+        assertThat(warmUp.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(warmUp.getFailed(), is(1));
+        // the filler takes over and fails as well
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cp.getMetrics().getFailures() < 2
+                && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+
+        // and keeps retrying without another discard to prompt it
+        provider.setDown(false);
+        while (cp.getPooledSize() < 1 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertThat(cp.getPooledSize(), is(1));
+    }
+
+    @Test
+    public void test_warmUp_failure() throws Exception {
+        provider.setDown(true);
+
+        WarmUp warmUp = cp.warmUp(4, 2);
+
+        assertThat(warmUp.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(warmUp.getOpened(), is(0));
+        assertThat(warmUp.getFailed(), is(4));
+        assertThat(warmUp.getFailures().get(0).getMessage(),
+                is("Database is down"));
+        assertThat(cp.getPooledSize(), is(0));
+    }
+
+    @Test
+    public void test_warmUp_nothingMissing() throws Exception {
+        cp.setMinPoolSize(2);
+
+        WarmUp warmUp = cp.warmUp(2, 4);
+
+        assertThat(warmUp.isDone(), is(true));
+        assertThat(warmUp.getTarget(), is(0));
+    }
+
+    @Test
+    public void test_adaptiveSizing() throws Exception {
+        cp.setAdaptiveBounds(1, 20);
+        cp.setAdaptiveInterval(5, TimeUnit.MILLISECONDS);
+        cp.setAdaptiveSizing(true);
+
+        List<Connection> cons = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            cons.add(cp.checkOut());
+        }
+
+        // 8 in use with 25% headroom
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cp.getAdaptiveTarget() < 10 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertThat(cp.getAdaptiveTarget(), is(10));
+        while (cp.getPooledSize() < 2 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertThat(cp.getPooledSize(), is(2));
+
+        for (Connection con : cons) {
+            cp.checkIn(con);
+        }
+
+        // drains to the lower bound once demand is gone
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cp.getDemandEstimate() > 0 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertThat(cp.getPooledSize(), is(1));
+        assertThat(cp.getAdaptiveTarget(), is(1));
+        assertThat(cp.getDemandEstimate(), is(0.0));
+
+        List<SizingDecision> decisions = cp.getSizingDecisions();
+        assertThat(decisions.isEmpty(), is(false));
+        SizingDecision last = decisions.get(decisions.size() - 1);
+        assertThat(last.getTarget(), is(1));
+        assertTrue(last.getPreviousTarget() > 1);
+    }
+
+    @Test
+    public void test_adaptiveSizing_upperBound() throws Exception {
+        cp.setAdaptiveBounds(0, 3);
+        cp.setAdaptiveInterval(5, TimeUnit.MILLISECONDS);
+        cp.setAdaptiveSizing(true);
+
+        List<Connection> cons = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            cons.add(cp.checkOut());
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cp.getAdaptiveTarget() < 3 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        TimeUnit.MILLISECONDS.sleep(50);
+
+        assertThat(cp.getAdaptiveTarget(), is(3));
+        assertThat(cp.getPooledSize(), is(1));
+
+        cp.setAdaptiveSizing(false);
+
+        assertThat(cp.getAdaptiveTarget(), is(0));
+        for (Connection con : cons) {
+            cp.checkIn(con);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_adaptiveBounds_invalid() throws Exception {
+        cp.setAdaptiveBounds(5, 4);
+    }
+
+    @Test
+    public void test_checkOut_bulk() throws Exception {
+        List<Connection> cons = cp.checkOut(3);
+
+        assertThat(cons.size(), is(3));
+        assertThat(new HashSet<>(cons).size(), is(3));
+
+        cp.checkIn(cons);
+
+        assertThat(cp.getPooledSize(), is(3));
+    }
+
+    @Test
+    public void test_checkOut_bulk_timeout() throws Exception {
+        cp.setMaxTotalSize(2);
+        cp.setCheckOutTimeout(50, TimeUnit.MILLISECONDS);
+        Connection con = cp.checkOut();
+
+        try {
+            cp.checkOut(2);
+            fail();
+        } catch (SQLTimeoutException expected) {}
+
+        // the connection reserved before the timeout was given back
+        assertThat(cp.getPooledSize(), is(1));
+        assertThat(cp.getMetrics().getActive(), is(1));
+        cp.checkIn(con);
+        assertThat(cp.checkOut(2).size(), is(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_checkOut_bulk_overMaxTotalSize() throws Exception {
+        cp.setMaxTotalSize(2);
+        cp.checkOut(3);
+    }
+
+    @Test
+    public void test_checkOut_bulk_noDeadlock() throws Exception {
+        cp.setMaxTotalSize(4);
+        cp.setCheckOutTimeout(5, TimeUnit.SECONDS);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < 200; j++) {
+                        cp.checkIn(cp.checkOut(3));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertThat(cp.getMetrics().getActive(), is(0));
+    }
+
+    @Test
+    public void test_checkOutAsync() throws Exception {
+        final AtomicInteger executed = new AtomicInteger();
+        cp.setAsyncExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                executor.execute(command);
+            }
+        });
+
+        Connection con1 = cp.checkOutAsync().get(1, TimeUnit.SECONDS);
+        cp.checkIn(con1);
+        Connection con2 = cp.checkOutAsync().get(1, TimeUnit.SECONDS);
+
+        assertThat(con2, is(con1));
+        assertThat(executed.get(), is(2));
+        assertThat(cp.getMetrics().getCheckOuts(), is(2L));
+    }
+
+    @Test
+    public void test_checkOutAsync_testOnBorrow() throws Exception {
+        cp.setTestOnBorrow(true);
+        cp.setValidationInterval(0, TimeUnit.MILLISECONDS);
+        cp.checkIn(cp.checkOut());
+
+        Connection con = cp.checkOutAsync().get(1, TimeUnit.SECONDS);
+
+        // never on the caller's thread, which may be an event loop
+        assertThat(con, is(provider.getMockConnectionProviders().get(0)
+                .get()));
+        assertThat(provider.getMockConnectionProviders().get(0)
+                .getValidationCount(), is(1));
+        assertThat(provider.getMockConnectionProviders().get(0)
+                .getValidationThread(), is(not(Thread.currentThread())));
+    }
+
+    @Test
+    public void test_checkOutAsync_leakTrace() throws Exception {
+        final List<LogRecord> records = new CopyOnWriteArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getMessage().equals("dbcp.leak.detected")) {
+                    records.add(record);
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(PoolingDataSource.class.getName(),
+                "oreore");
+        logger.addHandler(handler);
+        try {
+            cp.setLeakTraceSampleRate(1);
+            cp.setLeakDetectionThreshold(50, TimeUnit.MILLISECONDS);
+            cp.checkOutAsync().get(1, TimeUnit.SECONDS);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (records.isEmpty() && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(5);
+            }
+
+            // the trace points at the caller, not at asyncExecutor
+            assertThat(records.size(), is(1));
+            boolean borrowedHere = false;
+            for (StackTraceElement element : records.get(0).getThrown()
+                    .getStackTrace()) {
+                borrowedHere |= element.getMethodName().equals(
+                        "test_checkOutAsync_leakTrace");
+            }
+            assertThat(borrowedHere, is(true));
+        } finally {
+            logger.removeHandler(handler);
+        }
+    }
+
+    @Test
+    public void test_checkOutAsync_wait() throws Exception {
+        cp.setMaxTotalSize(1);
+        Connection con1 = cp.checkOut();
+
+        CompletableFuture<Connection> future = cp.checkOutAsync();
+
+        assertThat(future.isDone(), is(false));
+        assertThat(cp.getMetrics().getWaiting(), is(1));
+
+        cp.checkIn(con1);
+
+        assertThat(future.get(1, TimeUnit.SECONDS), is(con1));
+        assertThat(cp.getMetrics().getWaiting(), is(0));
+    }
+
+    @Test
+    public void test_checkOutAsync_timeout() throws Exception {
+        cp.setMaxTotalSize(1);
+        cp.setCheckOutTimeout(50, TimeUnit.MILLISECONDS);
+        cp.checkOut();
+
+        CompletableFuture<Connection> future = cp.checkOutAsync();
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(SQLTimeoutException.class)));
+        }
+        assertThat(cp.getMetrics().getWaiting(), is(0));
+        assertThat(cp.getMetrics().getTimeouts(), is(1L));
+    }
+
+    @Test
+    public void test_checkOutAsync_timeout_blockedConnect() throws Exception {
+        cp.setMaxTotalSize(1);
+        cp.setCheckOutTimeout(100, TimeUnit.MILLISECONDS);
+        cp.setMaxLifetime(20, TimeUnit.MILLISECONDS);
+        cp.setMaxLifetimeJitter(0);
+        Connection con = cp.checkOut();
+        TimeUnit.MILLISECONDS.sleep(40);
+        CountDownLatch gate = new CountDownLatch(1);
+        provider.setGate(gate);
+        // retired; its replacement blocks the pool's own thread on connect
+        cp.checkIn(con);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (provider.getConnecting() < 1 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+
+        CompletableFuture<Connection> future = cp.checkOutAsync();
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(SQLTimeoutException.class)));
+        } finally {
+            gate.countDown();
+        }
+    }
+
+    @Test
+    public void test_checkOutAsync_cancel() throws Exception {
+        cp.setMaxTotalSize(1);
+        Connection con1 = cp.checkOut();
+
+        CompletableFuture<Connection> future = cp.checkOutAsync();
+        assertThat(future.cancel(false), is(true));
+        cp.checkIn(con1);
+
+        // the connection is not held by the cancelled future
+        assertThat(cp.getMetrics().getWaiting(), is(0));
+        assertThat(cp.getPooledSize(), is(1));
+        assertThat(cp.checkOut(), is(con1));
+    }
+
     @Test
     public void test_timeout_minPoolSize() throws Exception {
         cp.setTimeout(50, TimeUnit.MILLISECONDS);
@@ -168,6 +1141,257 @@ public class ConnectionPoolTest {
         assertThat(cp.getPooledSize(), is(1));
     }
 
+    @Test
+    public void test_maxLifetime_checkIn() throws Exception {
+        cp.setMaxLifetime(50, TimeUnit.MILLISECONDS);
+        cp.setMaxLifetimeJitter(0);
+
+        Connection con = cp.checkOut();
+        TimeUnit.MILLISECONDS.sleep(80);
+        cp.checkIn(con);
+
+        assertThat(con.isClosed(), is(true));
+        assertThat(cp.getMetrics().getRetirements(), is(1L));
+
+        // replaced in the background
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cp.getPooledSize() < 1 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertThat(cp.getPooledSize(), is(1));
+        assertThat(provider.getMockConnectionProviders().size(), is(2));
+        assertThat(cp.checkOut(), is(not(sameInstance(con))));
+    }
+
+    @Test
+    public void test_maxLifetime_idle() throws Exception {
+        cp.setMaxLifetime(50, TimeUnit.MILLISECONDS);
+        cp.setMinPoolSize(1);
+
+        Connection con = cp.checkOut();
+        cp.checkIn(con);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (con.isClosed() == false && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertThat(con.isClosed(), is(true));
+        while (cp.getPooledSize() < 1 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertThat(cp.getPooledSize(), is(1));
+        assertTrue(cp.getMetrics().getRetirements() >= 1);
+        assertThat(cp.getMetrics().getEvictions(), is(0L));
+    }
+
+    @Test
+    public void test_maxLifetime_jitter() throws Exception {
+        cp.setMaxLifetime(100, TimeUnit.MILLISECONDS);
+        long max = TimeUnit.MILLISECONDS.toNanos(100);
+        List<ConnectionPool.Pooled> entries = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            entries.add(cp.borrow());
+        }
+
+        // each connection keeps its point in the range as the range changes
+        cp.setMaxLifetimeJitter(1);
+        Set<Long> lifetimes = new HashSet<>();
+        for (ConnectionPool.Pooled pooled : entries) {
+            long lifetime = cp.lifetime(pooled);
+            assertTrue(lifetime > 0);
+            assertTrue(lifetime <= max);
+            lifetimes.add(lifetime);
+        }
+        assertTrue(lifetimes.size() > 1);
+
+        cp.setMaxLifetimeJitter(0.1);
+        for (ConnectionPool.Pooled pooled : entries) {
+            long lifetime = cp.lifetime(pooled);
+            assertTrue(lifetime > max * 9 / 10);
+            assertTrue(lifetime <= max);
+        }
+
+        cp.setMaxLifetimeJitter(0);
+        for (ConnectionPool.Pooled pooled : entries) {
+            assertThat(cp.lifetime(pooled), is(max));
+        }
+        for (ConnectionPool.Pooled pooled : entries) {
+            cp.checkIn(pooled);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_maxLifetimeJitter_invalid() throws Exception {
+        cp.setMaxLifetimeJitter(1.5);
+    }
+
+    @Test
+    public void test_maxConcurrentOpens() throws Exception {
+        cp.setMaxConcurrentOpens(2);
+        CountDownLatch gate = new CountDownLatch(1);
+        provider.setGate(gate);
+
+        List<Future<Connection>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            futures.add(executor.submit(new Callable<Connection>() {
+                @Override
+                public Connection call() throws Exception {
+                    return cp.checkOut();
+                }
+            }));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (provider.getConnecting() < 2 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        TimeUnit.MILLISECONDS.sleep(50);
+
+        assertThat(provider.getConnecting(), is(2));
+        assertThat(cp.getMetrics().getWaiting(), is(4));
+
+        gate.countDown();
+
+        Set<Connection> cons = new HashSet<>();
+        for (Future<Connection> future : futures) {
+            cons.add(future.get(5, TimeUnit.SECONDS));
+        }
+        assertThat(cons.size(), is(6));
+        assertThat(provider.getMaxConnecting(), is(2));
+    }
+
+    @Test
+    public void test_maxConcurrentOpens_checkIn() throws Exception {
+        cp.setMaxConcurrentOpens(1);
+        Connection con = cp.checkOut();
+        CountDownLatch gate = new CountDownLatch(1);
+        provider.setGate(gate);
+
+        Callable<Connection> task = new Callable<Connection>() {
+            @Override
+            public Connection call() throws Exception {
+                return cp.checkOut();
+            }
+        };
+        Future<Connection> opener = executor.submit(task);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (provider.getConnecting() < 1 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        Future<Connection> waiter = executor.submit(task);
+        while (cp.getMetrics().getWaiting() < 1
+                && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+
+        // served by the returned connection while the open is still pending
+        cp.checkIn(con);
+
+        assertThat(waiter.get(5, TimeUnit.SECONDS), is(sameInstance(con)));
+        assertThat(opener.isDone(), is(false));
+
+        gate.countDown();
+
+        assertThat(opener.get(5, TimeUnit.SECONDS), is(notNullValue()));
+    }
+
+    @Test
+    public void test_maxConcurrentOpens_minPoolSize() throws Exception {
+        cp.setMaxConcurrentOpens(1);
+        cp.setMinPoolSize(5);
+
+        assertThat(cp.getPooledSize(), is(5));
+        assertThat(provider.getMaxConnecting(), is(1));
+    }
+
+    @Test
+    public void test_circuitBreaker() throws Exception {
+        cp.setCircuitBreakerThreshold(2);
+        cp.setCircuitBreakerCoolDown(100, TimeUnit.MILLISECONDS);
+        provider.setDown(true);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cp.checkOut();
+                fail();
+            } catch (SQLTransientConnectionException e) {
+                fail();
+            } catch (SQLException e) {
+                assertThat(e.getMessage(), is("Database is down"));
+            }
+        }
+        assertThat(cp.isCircuitOpen(), is(true));
+
+        // fails fast without trying to connect
+        try {
+            cp.checkOut();
+            fail();
+        } catch (SQLTransientConnectionException e) {
+        }
+        assertThat(cp.getMetrics().getFailures(), is(2L));
+
+        // a failed probe reopens the circuit
+        TimeUnit.MILLISECONDS.sleep(150);
+        try {
+            cp.checkOut();
+            fail();
+        } catch (SQLTransientConnectionException e) {
+            fail();
+        } catch (SQLException e) {
+        }
+        assertThat(cp.getMetrics().getFailures(), is(3L));
+        try {
+            cp.checkOut();
+            fail();
+        } catch (SQLTransientConnectionException e) {
+        }
+
+        provider.setDown(false);
+        TimeUnit.MILLISECONDS.sleep(150);
+
+        Connection con = cp.checkOut();
+        assertThat(con, is(notNullValue()));
+        assertThat(cp.isCircuitOpen(), is(false));
+        cp.checkIn(con);
+    }
+
+    @Test
+    public void test_circuitBreaker_singleProbe() throws Exception {
+        cp.setCircuitBreakerThreshold(1);
+        cp.setCircuitBreakerCoolDown(50, TimeUnit.MILLISECONDS);
+        provider.setDown(true);
+        try {
+            cp.checkOut();
+            fail();
+        } catch (SQLException e) {
+        }
+        provider.setDown(false);
+        TimeUnit.MILLISECONDS.sleep(80);
+
+        CountDownLatch gate = new CountDownLatch(1);
+        provider.setGate(gate);
+        Future<Connection> probe = executor.submit(new Callable<Connection>() {
+            @Override
+            public Connection call() throws Exception {
+                return cp.checkOut();
+            }
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (provider.getConnecting() < 1 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+
+        // only the probe goes through while it is in flight
+        try {
+            cp.checkOut();
+            fail();
+        } catch (SQLTransientConnectionException e) {
+        }
+
+        gate.countDown();
+        cp.checkIn(probe.get(5, TimeUnit.SECONDS));
+        assertThat(cp.isCircuitOpen(), is(false));
+    }
+
     @Test
     public void test_close() throws Exception {
         Connection con1 = cp.checkOut();
@@ -212,4 +1436,42 @@ public class ConnectionPoolTest {
 
         assertThat(cp.getPooledSize(), is(1));
     }
+
+    @Test
+    public void test_contention() throws Exception {
+        final int iterations = 5000;
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            final ConcurrentMap<Connection, Thread> inUse = new ConcurrentHashMap<>();
+            final AtomicInteger conflicts = new AtomicInteger();
+            final CountDownLatch gate = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Callable<Void> task = new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        gate.await();
+                        Thread thread = Thread.currentThread();
+                        for (int j = 0; j < iterations; j++) {
+                            Connection con = cp.checkOut();
+                            if (inUse.putIfAbsent(con, thread) != null) {
+                                conflicts.incrementAndGet();
+                            }
+                            inUse.remove(con, thread);
+                            cp.checkIn(con);
+                        }
+                        return null;
+                    }
+                };
+                futures.add(executor.submit(task));
+            }
+            gate.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            assertThat(conflicts.get(), is(0));
+            assertThat(cp.getPooledSize() <= threads, is(true));
+        }
+    }
 }
@@ -0,0 +1,53 @@
+package oreore.dbcp;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class PoolMetricsTest {
+
+    @Test
+    public void test_histogram_buckets() throws Exception {
+        PoolMetrics.Histogram histogram = new PoolMetrics.Histogram();
+        histogram.record(500);
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+        histogram.record(TimeUnit.HOURS.toNanos(1));
+
+        PoolMetrics.Distribution distribution = histogram.snapshot();
+        assertThat(distribution.getCount(), is(3L));
+        assertThat(distribution.getBucket(0), is(1L));
+        assertThat(distribution.getBucket(2), is(1L));
+        assertThat(distribution.getBucket(PoolMetrics.Histogram.BUCKETS - 1),
+                is(1L));
+        assertThat(distribution.getUpperBound(2, TimeUnit.MICROSECONDS),
+                is(4L));
+    }
+
+    @Test
+    public void test_histogram_percentile() throws Exception {
+        PoolMetrics.Histogram histogram = new PoolMetrics.Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(10));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+
+        PoolMetrics.Distribution distribution = histogram.snapshot();
+        assertThat(distribution.getPercentile(0.5, TimeUnit.MICROSECONDS),
+                is(16L));
+        assertThat(distribution.getPercentile(0.99, TimeUnit.MICROSECONDS),
+                is(16L));
+        assertThat(distribution.getPercentile(1, TimeUnit.MICROSECONDS),
+                is(16384L));
+    }
+
+    @Test
+    public void test_histogram_empty() throws Exception {
+        PoolMetrics.Distribution distribution = new PoolMetrics.Histogram()
+                .snapshot();
+        assertThat(distribution.getCount(), is(0L));
+        assertThat(distribution.getMean(TimeUnit.MICROSECONDS), is(0L));
+        assertThat(distribution.getPercentile(0.99, TimeUnit.MICROSECONDS),
+                is(0L));
+    }
+}
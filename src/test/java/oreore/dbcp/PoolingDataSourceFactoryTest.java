@@ -3,8 +3,13 @@ package oreore.dbcp;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import oreore.mock.MockConnectionProvider;
 import oreore.mock.MockDataSourceProvider;
+import oreore.mock.MockPreparedStatementProvider;
 import org.junit.Test;
 
 public class PoolingDataSourceFactoryTest {
@@ -39,4 +44,215 @@ public class PoolingDataSourceFactoryTest {
         }
     }
 
+    @Test
+    public void testClose() throws SQLException {
+        PoolingDataSourceFactory factory = new PoolingDataSourceFactory();
+        try (ConnectionPool cp = new ConnectionPool()) {
+            MockDataSourceProvider provider = new MockDataSourceProvider();
+            cp.setDataSource(provider.get());
+            try (PoolingDataSource dataSource = factory.create(cp)) {
+                Connection con = dataSource.getConnection();
+                con.close();
+                con.close();
+
+                assertThat(con.isClosed(), is(true));
+                assertThat(cp.getPooledSize(), is(1));
+                try {
+                    con.getAutoCommit();
+                    fail();
+                } catch (SQLException expected) {}
+            }
+        }
+    }
+
+    @Test
+    public void testGetConnectionAsync() throws Exception {
+        PoolingDataSourceFactory factory = new PoolingDataSourceFactory();
+        try (ConnectionPool cp = new ConnectionPool()) {
+            MockDataSourceProvider provider = new MockDataSourceProvider();
+            cp.setDataSource(provider.get());
+            try (PoolingDataSource dataSource = factory.create(cp)) {
+                Connection con = dataSource.getConnectionAsync().get(1,
+                        TimeUnit.SECONDS);
+                assertThat(con.getAutoCommit(), is(true));
+                con.close();
+
+                assertThat(cp.getPooledSize(), is(1));
+                assertThat(provider.getMockConnectionProviders().size(), is(1));
+            }
+        }
+    }
+
+    @Test
+    public void testSessionState() throws SQLException {
+        PoolingDataSourceFactory factory = new PoolingDataSourceFactory();
+        try (ConnectionPool cp = new ConnectionPool()) {
+            MockDataSourceProvider provider = new MockDataSourceProvider();
+            cp.setDataSource(provider.get());
+            try (PoolingDataSource dataSource = factory.create(cp)) {
+                Connection con1 = dataSource.getConnection();
+                MockConnectionProvider physical = provider
+                        .getMockConnectionProviders().get(0);
+                con1.setAutoCommit(true);
+                assertThat(physical.getSetAutoCommitCount(), is(0));
+
+                con1.setAutoCommit(false);
+                con1.setAutoCommit(false);
+                con1.setReadOnly(true);
+                assertThat(physical.getSetAutoCommitCount(), is(1));
+                con1.close();
+
+                // the abandoned transaction is rolled back, not committed
+                assertThat(physical.getRollbackCount(), is(1));
+                assertThat(physical.getCommitCount(), is(0));
+                assertThat(physical.isAutoCommit(), is(true));
+                assertThat(physical.isReadOnly(), is(false));
+
+                Connection con2 = dataSource.getConnection();
+                assertThat(con2.getAutoCommit(), is(true));
+                con2.setAutoCommit(false);
+                con2.commit();
+                con2.setAutoCommit(true);
+                con2.close();
+
+                // nothing left to restore
+                assertThat(physical.getSetAutoCommitCount(), is(4));
+                assertThat(physical.getRollbackCount(), is(1));
+            }
+        }
+    }
+
+    @Test
+    public void testStatementCache() throws SQLException {
+        PoolingDataSourceFactory factory = new PoolingDataSourceFactory();
+        factory.setStatementCacheSize(1);
+        try (ConnectionPool cp = new ConnectionPool()) {
+            MockDataSourceProvider provider = new MockDataSourceProvider();
+            cp.setDataSource(provider.get());
+            try (PoolingDataSource dataSource = factory.create(cp)) {
+                Connection con1 = dataSource.getConnection();
+                PreparedStatement ps1 = con1.prepareStatement("select 1");
+                assertThat(ps1.getConnection(), is(sameInstance(con1)));
+                con1.close();
+                assertThat(ps1.isClosed(), is(true));
+
+                List<MockPreparedStatementProvider> physicals = provider
+                        .getMockConnectionProviders().get(0)
+                        .getMockPreparedStatementProviders();
+                assertThat(physicals.size(), is(1));
+                assertThat(physicals.get(0).isClosed(), is(false));
+                assertThat(physicals.get(0).getClearParametersCount(), is(1));
+
+                Connection con2 = dataSource.getConnection();
+                PreparedStatement ps2 = con2.prepareStatement("select 1");
+                PreparedStatement ps3 = con2.prepareStatement("select 1");
+                assertThat(physicals.size(), is(2));
+
+                ps2.close();
+                ps3.close();
+                // same key twice: the statement returned last replaces the other
+                assertThat(physicals.get(0).isClosed(), is(true));
+                assertThat(physicals.get(1).isClosed(), is(false));
+
+                con2.prepareStatement("select 2").close();
+                // least recently used statement is evicted
+                assertThat(physicals.size(), is(3));
+                assertThat(physicals.get(1).isClosed(), is(true));
+                assertThat(physicals.get(2).isClosed(), is(false));
+                con2.close();
+            }
+            List<MockPreparedStatementProvider> physicals = provider
+                    .getMockConnectionProviders().get(0)
+                    .getMockPreparedStatementProviders();
+            assertThat(physicals.get(2).isClosed(), is(true));
+        }
+    }
+
+    @Test
+    public void testLeakReclaimed_close() throws Exception {
+        PoolingDataSourceFactory factory = new PoolingDataSourceFactory();
+        factory.setStatementCacheSize(1);
+        try (ConnectionPool cp = new ConnectionPool()) {
+            MockDataSourceProvider provider = new MockDataSourceProvider();
+            cp.setDataSource(provider.get());
+            cp.setReclaimLeaks(true);
+            cp.setLeakDetectionThreshold(20, TimeUnit.MILLISECONDS);
+            try (PoolingDataSource dataSource = factory.create(cp)) {
+                Connection con = dataSource.getConnection();
+                con.setAutoCommit(false);
+                PreparedStatement ps = con.prepareStatement("select 1");
+
+                MockConnectionProvider physical = provider
+                        .getMockConnectionProviders().get(0);
+                long deadline = System.nanoTime()
+                        + TimeUnit.SECONDS.toNanos(5);
+                // the slot is freed just after the physical close
+                while ((physical.isClosed() == false
+                        || cp.getMetrics().getActive() > 0)
+                        && System.nanoTime() < deadline) {
+                    TimeUnit.MILLISECONDS.sleep(5);
+                }
+                assertThat(physical.isClosed(), is(true));
+                int setAutoCommitCount = physical.getSetAutoCommitCount();
+
+                // no session reset on the closed connection, no check-in
+                ps.close();
+                con.close();
+
+                assertThat(con.isClosed(), is(true));
+                assertThat(physical.getSetAutoCommitCount(),
+                        is(setAutoCommitCount));
+                assertThat(physical.getRollbackCount(), is(0));
+                assertThat(cp.getPooledSize(), is(0));
+                assertThat(cp.getMetrics().getActive(), is(0));
+            }
+        }
+    }
+
+    @Test
+    public void testStatementCache_reset() throws SQLException {
+        PoolingDataSourceFactory factory = new PoolingDataSourceFactory();
+        factory.setStatementCacheSize(1);
+        try (ConnectionPool cp = new ConnectionPool()) {
+            MockDataSourceProvider provider = new MockDataSourceProvider();
+            cp.setDataSource(provider.get());
+            try (PoolingDataSource dataSource = factory.create(cp)) {
+                Connection con1 = dataSource.getConnection();
+                PreparedStatement ps1 = con1.prepareStatement("select 1");
+                ps1.addBatch();
+                ps1.setMaxRows(10);
+                con1.close();
+
+                MockPreparedStatementProvider physical = provider
+                        .getMockConnectionProviders().get(0)
+                        .getMockPreparedStatementProviders().get(0);
+                assertThat(physical.isClosed(), is(false));
+                assertThat(physical.getBatchSize(), is(0));
+                assertThat(physical.getMaxRows(), is(0));
+
+                // unchanged: nothing to undo
+                Connection con2 = dataSource.getConnection();
+                PreparedStatement ps2 = con2.prepareStatement("select 1");
+                int maxRowsCount = physical.getMaxRowsCount();
+                ps2.close();
+                assertThat(physical.getClearBatchCount(), is(1));
+                assertThat(physical.getMaxRowsCount(), is(maxRowsCount));
+
+                // executed batches leave nothing behind
+                PreparedStatement ps3 = con2.prepareStatement("select 1");
+                ps3.addBatch();
+                ps3.executeBatch();
+                ps3.close();
+                assertThat(physical.getClearBatchCount(), is(1));
+
+                // an irreversible change keeps the statement out of the cache
+                PreparedStatement ps4 = con2.prepareStatement("select 1");
+                ps4.setPoolable(false);
+                ps4.close();
+                assertThat(physical.isClosed(), is(true));
+                con2.close();
+            }
+        }
+    }
+
 }
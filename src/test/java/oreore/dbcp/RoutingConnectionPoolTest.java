@@ -0,0 +1,268 @@
+package oreore.dbcp;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import oreore.mock.MockConnectionProvider;
+import oreore.mock.MockDataSourceProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RoutingConnectionPoolTest {
+
+    private RoutingConnectionPool rcp;
+    private ConnectionPool cp1;
+    private ConnectionPool cp2;
+    private MockDataSourceProvider provider1;
+    private MockDataSourceProvider provider2;
+
+    @Before
+    public void setUp() throws Exception {
+        provider1 = new MockDataSourceProvider();
+        provider2 = new MockDataSourceProvider();
+        cp1 = new ConnectionPool();
+        cp1.setDataSource(provider1.get());
+        cp2 = new ConnectionPool();
+        cp2.setDataSource(provider2.get());
+        rcp = new RoutingConnectionPool();
+        rcp.addMember(cp1);
+        rcp.addMember(cp2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (rcp != null) {
+            rcp.close();
+        }
+    }
+
+    @Test
+    public void test_leastOutstanding() throws Exception {
+        Connection con1 = rcp.checkOut();
+        Connection con2 = rcp.checkOut();
+
+        assertThat(provider1.getMockConnectionProviders().size(), is(1));
+        assertThat(provider2.getMockConnectionProviders().size(), is(1));
+
+        rcp.checkIn(con1);
+        rcp.checkIn(con2);
+
+        assertThat(cp1.getPooledSize(), is(1));
+        assertThat(cp2.getPooledSize(), is(1));
+    }
+
+    @Test
+    public void test_latency() throws Exception {
+        rcp.setPolicy(RoutingConnectionPool.Policy.LATENCY);
+        for (int i = 0; i < 10; i++) {
+            rcp.checkIn(rcp.checkOut());
+        }
+
+        assertThat(cp1.getMetrics().getCheckOuts()
+                + cp2.getMetrics().getCheckOuts(), is(10L));
+    }
+
+    @Test
+    public void test_latency_slowMember() throws Exception {
+        rcp.setPolicy(RoutingConnectionPool.Policy.LATENCY);
+        for (int i = 0; i < 20; i++) {
+            Connection con = rcp.checkOut();
+            // queries on the first member take a while
+            if (cp1.getMetrics().getActive() > 0) {
+                TimeUnit.MILLISECONDS.sleep(5);
+            }
+            rcp.checkIn(con);
+        }
+
+        long slow = cp1.getMetrics().getCheckOuts();
+        long fast = cp2.getMetrics().getCheckOuts();
+        assertThat(slow + fast, is(20L));
+        assertTrue(slow + " check-outs from the slow member", slow <= 2);
+    }
+
+    @Test
+    public void test_eject() throws Exception {
+        rcp.setFailureThreshold(1);
+        provider1.setDown(true);
+
+        for (int i = 0; i < 10; i++) {
+            rcp.checkIn(rcp.checkOut());
+        }
+
+        assertThat(rcp.isEjected(cp1), is(true));
+        assertThat(rcp.isEjected(cp2), is(false));
+        assertThat(provider1.getMockConnectionProviders().size(), is(0));
+        assertThat(cp2.getMetrics().getCheckOuts(), is(10L));
+    }
+
+    @Test
+    public void test_eject_validation() throws Exception {
+        rcp.setFailureThreshold(1);
+        rcp.setProbeInterval(1, TimeUnit.MINUTES);
+        cp1.setTestOnBorrow(true);
+        cp1.setValidationInterval(0, TimeUnit.MILLISECONDS);
+        cp1.checkIn(cp1.checkOut());
+        provider1.getMockConnectionProviders().get(0).setValid(false);
+
+        // the second goes to whichever member the first did not
+        Connection con1 = rcp.checkOut();
+        Connection con2 = rcp.checkOut();
+
+        assertThat(rcp.isEjected(cp1), is(true));
+        assertThat(rcp.isEjected(cp2), is(false));
+        assertThat(cp1.getMetrics().getValidationFailures(), is(1L));
+        rcp.checkIn(con1);
+        rcp.checkIn(con2);
+    }
+
+    @Test
+    public void test_eject_validation_concurrent() throws Exception {
+        rcp.removeMember(cp2);
+        rcp.setFailureThreshold(1);
+        rcp.setProbeInterval(1, TimeUnit.MINUTES);
+        cp1.setTestOnBorrow(true);
+        cp1.setValidationInterval(0, TimeUnit.MILLISECONDS);
+        Connection con0 = cp1.checkOut();
+        CountDownLatch gate = new CountDownLatch(1);
+        provider1.setGate(gate);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Connection> routed = executor.submit(new Callable<Connection>() {
+                @Override
+                public Connection call() throws Exception {
+                    return rcp.checkOut();
+                }
+            });
+            while (provider1.getConnecting() < 1) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            // a direct borrower discards a broken connection meanwhile
+            provider1.getMockConnectionProviders().get(0).setValid(false);
+            cp1.checkIn(con0);
+            Future<Connection> direct = executor.submit(new Callable<Connection>() {
+                @Override
+                public Connection call() throws Exception {
+                    return cp1.checkOut();
+                }
+            });
+            while (cp1.getMetrics().getValidationFailures() < 1) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            gate.countDown();
+
+            Connection con = routed.get(5, TimeUnit.SECONDS);
+            assertThat(rcp.isEjected(cp1), is(false));
+            rcp.checkIn(con);
+            cp1.checkIn(direct.get(5, TimeUnit.SECONDS));
+        } finally {
+            gate.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test_checkOut_runtimeException() throws Exception {
+        rcp.removeMember(cp2);
+        cp1.setDataSource((DataSource) Proxy.newProxyInstance(getClass()
+                .getClassLoader(), new Class<?>[] { DataSource.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        throw new IllegalStateException("Driver bug");
+                    }
+                }));
+        try {
+            rcp.checkOut();
+            fail();
+        } catch (IllegalStateException expected) {}
+        cp1.setDataSource(provider1.get());
+        rcp.addMember(cp2);
+
+        // cp1 ties with cp2 unless the failed check-out is still counted
+        for (int i = 0; i < 20; i++) {
+            rcp.checkIn(rcp.checkOut());
+        }
+
+        assertThat(cp1.getMetrics().getCheckOuts() > 0, is(true));
+    }
+
+    @Test
+    public void test_probe() throws Exception {
+        rcp.setFailureThreshold(1);
+        rcp.setProbeInterval(20, TimeUnit.MILLISECONDS);
+        provider1.setDown(true);
+        provider2.setDown(true);
+
+        try {
+            rcp.checkOut();
+            fail();
+        } catch (SQLException expected) {}
+        try {
+            rcp.checkOut();
+            fail();
+        } catch (SQLException expected) {}
+
+        assertThat(rcp.isEjected(cp1), is(true));
+        assertThat(rcp.isEjected(cp2), is(true));
+
+        provider2.setDown(false);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        assertThat(rcp.isEjected(cp1), is(true));
+        assertThat(rcp.isEjected(cp2), is(false));
+        Connection con = rcp.checkOut();
+        MockConnectionProvider physical = provider2
+                .getMockConnectionProviders().get(0);
+        assertThat(con, is(physical.get()));
+    }
+
+    @Test
+    public void test_probe_exhausted() throws Exception {
+        rcp.setFailureThreshold(1);
+        rcp.setProbeInterval(20, TimeUnit.MILLISECONDS);
+        provider1.setDown(true);
+        provider2.setDown(true);
+        for (int i = 0; i < 2; i++) {
+            try {
+                rcp.checkOut();
+                fail();
+            } catch (SQLException expected) {}
+        }
+        assertThat(rcp.isEjected(cp1), is(true));
+        assertThat(rcp.isEjected(cp2), is(true));
+
+        // the probe of cp1 cannot get a connection, which must not hold
+        // up the probe of cp2
+        provider1.setDown(false);
+        cp1.setMaxTotalSize(1);
+        Connection held = cp1.checkOut();
+        provider2.setDown(false);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+        while (rcp.isEjected(cp2) && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        assertThat(rcp.isEjected(cp2), is(false));
+        assertThat(rcp.isEjected(cp1), is(true));
+        cp1.checkIn(held);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_checkIn_unknown() throws Exception {
+        Connection con = cp1.checkOut();
+        rcp.checkIn(con);
+    }
+}
@@ -5,6 +5,9 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class MockConnectionProvider implements InvocationHandler {
@@ -16,6 +19,16 @@ public class MockConnectionProvider implements InvocationHandler {
     private int commitCount = 0;
     private int rollbackCount = 0;
     private boolean autoCommit = true;
+    private int setAutoCommitCount = 0;
+    private boolean readOnly = false;
+    private int savepointCount = 0;
+    private int releaseSavepointCount = 0;
+    private int rollbackToSavepointCount = 0;
+    private boolean valid = true;
+    private int validationCount = 0;
+    private volatile Thread validationThread;
+    private volatile int validationTimeout = -1;
+    private final List<MockPreparedStatementProvider> mockPreparedStatementProviders = new ArrayList<>();
 
     public MockConnectionProvider(String parentId) {
         this.id = parentId + ":" + idCounter.incrementAndGet();
@@ -31,6 +44,12 @@ public class MockConnectionProvider implements InvocationHandler {
 
         if (method.equals(Connection.class.getMethod("isClosed"))) {
             return closed;
+        } else if (method.equals(Connection.class.getMethod("isValid",
+                int.class))) {
+            validationCount++;
+            validationThread = Thread.currentThread();
+            validationTimeout = (Integer) args[0];
+            return closed == false && valid;
         } else if (method.equals(Connection.class.getMethod("close"))) {
             closed = true;
             return null;
@@ -58,12 +77,66 @@ public class MockConnectionProvider implements InvocationHandler {
                 throw new SQLException("Connection is already closed");
             }
             autoCommit = (boolean) args[0];
+            setAutoCommitCount++;
             return null;
         } else if (method.equals(Connection.class.getMethod("getAutoCommit"))) {
             if (closed) {
                 throw new SQLException("Connection is already closed");
             }
             return autoCommit;
+        } else if (method.equals(Connection.class.getMethod("setReadOnly",
+                boolean.class))) {
+            if (closed) {
+                throw new SQLException("Connection is already closed");
+            }
+            readOnly = (boolean) args[0];
+            return null;
+        } else if (method.equals(Connection.class.getMethod("isReadOnly"))) {
+            if (closed) {
+                throw new SQLException("Connection is already closed");
+            }
+            return readOnly;
+        } else if (method.equals(Connection.class.getMethod("setSavepoint"))) {
+            if (closed) {
+                throw new SQLException("Connection is already closed");
+            } else if (autoCommit) {
+                throw new SQLException(
+                        "Connection must not be auto commit mode");
+            }
+            final int savepointId = ++savepointCount;
+            return new Savepoint() {
+                @Override
+                public int getSavepointId() {
+                    return savepointId;
+                }
+
+                @Override
+                public String getSavepointName() throws SQLException {
+                    throw new SQLException("Savepoint is not named");
+                }
+            };
+        } else if (method.equals(Connection.class.getMethod(
+                "releaseSavepoint", Savepoint.class))) {
+            if (closed) {
+                throw new SQLException("Connection is already closed");
+            }
+            releaseSavepointCount++;
+            return null;
+        } else if (method.equals(Connection.class.getMethod("rollback",
+                Savepoint.class))) {
+            if (closed) {
+                throw new SQLException("Connection is already closed");
+            }
+            rollbackToSavepointCount++;
+            return null;
+        } else if (method.getName().equals("prepareStatement")) {
+            if (closed) {
+                throw new SQLException("Connection is already closed");
+            }
+            MockPreparedStatementProvider provider = new MockPreparedStatementProvider(
+                    (String) args[0]);
+            mockPreparedStatementProviders.add(provider);
+            return provider.get();
         }
 
         if (method.equals(Object.class.getMethod("toString"))) {
@@ -99,6 +172,42 @@ public class MockConnectionProvider implements InvocationHandler {
         return autoCommit;
     }
 
+    public void setValid(boolean valid) {
+        this.valid = valid;
+    }
+
+    public int getValidationCount() {
+        return validationCount;
+    }
+
+    public Thread getValidationThread() {
+        return validationThread;
+    }
+
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    public int getSetAutoCommitCount() {
+        return setAutoCommitCount;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public int getSavepointCount() {
+        return savepointCount;
+    }
+
+    public int getReleaseSavepointCount() {
+        return releaseSavepointCount;
+    }
+
+    public int getRollbackToSavepointCount() {
+        return rollbackToSavepointCount;
+    }
+
     public int getCommitCount() {
         return commitCount;
     }
@@ -106,4 +215,8 @@ public class MockConnectionProvider implements InvocationHandler {
     public int getRollbackCount() {
         return rollbackCount;
     }
+
+    public List<MockPreparedStatementProvider> getMockPreparedStatementProviders() {
+        return mockPreparedStatementProviders;
+    }
 }
@@ -4,8 +4,11 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.sql.DataSource;
 
@@ -17,7 +20,16 @@ public class MockDataSourceProvider implements InvocationHandler {
 
     private final DataSource dataSource;
 
-    private final List<MockConnectionProvider> mockConnectionProviders = new ArrayList<>();
+    private final List<MockConnectionProvider> mockConnectionProviders = Collections
+            .synchronizedList(new ArrayList<MockConnectionProvider>());
+
+    private volatile CountDownLatch gate;
+
+    private volatile boolean down;
+
+    private final AtomicInteger connecting = new AtomicInteger();
+
+    private final AtomicInteger maxConnecting = new AtomicInteger();
 
     public MockDataSourceProvider() {
         this.id = String.valueOf(idCounter.incrementAndGet());
@@ -32,10 +44,26 @@ public class MockDataSourceProvider implements InvocationHandler {
             throws Throwable {
 
         if (method.equals(DataSource.class.getMethod("getConnection"))) {
-            MockConnectionProvider connectionHandler = new MockConnectionProvider(
-                    id);
-            mockConnectionProviders.add(connectionHandler);
-            return connectionHandler.get();
+            int n = connecting.incrementAndGet();
+            try {
+                int max;
+                while ((max = maxConnecting.get()) < n
+                        && maxConnecting.compareAndSet(max, n) == false) {
+                }
+                CountDownLatch gate = this.gate;
+                if (gate != null) {
+                    gate.await();
+                }
+                if (down) {
+                    throw new SQLException("Database is down");
+                }
+                MockConnectionProvider connectionHandler = new MockConnectionProvider(
+                        id);
+                mockConnectionProviders.add(connectionHandler);
+                return connectionHandler.get();
+            } finally {
+                connecting.decrementAndGet();
+            }
         }
 
         throw new UnsupportedOperationException(method.toGenericString());
@@ -45,6 +73,23 @@ public class MockDataSourceProvider implements InvocationHandler {
         return dataSource;
     }
 
+    public void setGate(CountDownLatch gate) {
+        this.gate = gate;
+    }
+
+    public void setDown(boolean down) {
+        this.down = down;
+    }
+
+    // getConnection calls in progress
+    public int getConnecting() {
+        return connecting.get();
+    }
+
+    public int getMaxConnecting() {
+        return maxConnecting.get();
+    }
+
     public List<MockConnectionProvider> getMockConnectionProviders() {
         return mockConnectionProviders;
     }
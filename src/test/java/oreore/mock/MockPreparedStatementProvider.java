@@ -0,0 +1,115 @@
+package oreore.mock;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+public class MockPreparedStatementProvider implements InvocationHandler {
+
+    private final String sql;
+    private final PreparedStatement ps;
+    private boolean closed = false;
+    private int clearParametersCount = 0;
+    private int batchSize = 0;
+    private int clearBatchCount = 0;
+    private int maxRows = 0;
+    private int maxRowsCount = 0;
+
+    public MockPreparedStatementProvider(String sql) {
+        this.sql = sql;
+        ClassLoader loader = getClass().getClassLoader();
+        Class<?>[] interfaces = { PreparedStatement.class };
+        this.ps = (PreparedStatement) Proxy.newProxyInstance(loader,
+                interfaces, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+
+        if (method.equals(PreparedStatement.class.getMethod("isClosed"))) {
+            return closed;
+        } else if (method.equals(PreparedStatement.class.getMethod("close"))) {
+            closed = true;
+            return null;
+        } else if (method.equals(PreparedStatement.class
+                .getMethod("clearParameters"))) {
+            if (closed) {
+                throw new SQLException("Statement is already closed");
+            }
+            clearParametersCount++;
+            return null;
+        } else if (method.equals(PreparedStatement.class.getMethod("addBatch"))) {
+            batchSize++;
+            return null;
+        } else if (method.equals(PreparedStatement.class
+                .getMethod("clearBatch"))) {
+            batchSize = 0;
+            clearBatchCount++;
+            return null;
+        } else if (method.equals(PreparedStatement.class
+                .getMethod("executeBatch"))) {
+            int[] counts = new int[batchSize];
+            batchSize = 0;
+            return counts;
+        } else if (method.equals(PreparedStatement.class
+                .getMethod("getMaxRows"))) {
+            maxRowsCount++;
+            return maxRows;
+        } else if (method.equals(PreparedStatement.class.getMethod(
+                "setMaxRows", int.class))) {
+            maxRowsCount++;
+            maxRows = (Integer) args[0];
+            return null;
+        } else if (method.equals(PreparedStatement.class.getMethod(
+                "setPoolable", boolean.class))) {
+            return null;
+        }
+
+        if (method.equals(Object.class.getMethod("toString"))) {
+            return "PreparedStatement(" + sql + ")";
+        } else if (method.equals(Object.class.getMethod("hashCode"))) {
+            return System.identityHashCode(proxy);
+        } else if (method
+                .equals(Object.class.getMethod("equals", Object.class))) {
+            return proxy == args[0];
+        }
+
+        throw new UnsupportedOperationException(method.toGenericString());
+    }
+
+    public PreparedStatement get() {
+        return ps;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getClearParametersCount() {
+        return clearParametersCount;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getClearBatchCount() {
+        return clearBatchCount;
+    }
+
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    // calls of getMaxRows and setMaxRows
+    public int getMaxRowsCount() {
+        return maxRowsCount;
+    }
+}
@@ -9,6 +9,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import oreore.mock.MockConnectionProvider;
 import oreore.mock.MockDataSourceProvider;
@@ -88,6 +89,247 @@ public class LocalTransactionTest {
         assertThat(mockConnectionProvider.getRollbackCount(), is(1));
     }
 
+    @Test
+    public void test_lazyConnection() throws Exception {
+        List<MockConnectionProvider> mockConnectionProviders = provider
+                .getMockConnectionProviders();
+        tx.setLazyConnection(true);
+
+        tx.begin();
+        tx.commit();
+        tx.begin();
+        tx.rollback();
+
+        assertThat(mockConnectionProviders.size(), is(0));
+
+        tx.begin();
+
+        assertThat(mockConnectionProviders.size(), is(0));
+
+        Connection con = tx.getConnection();
+
+        assertThat(con, is(sameInstance(tx.getConnection())));
+        assertThat(mockConnectionProviders.size(), is(1));
+        MockConnectionProvider mockConnectionProvider = mockConnectionProviders
+                .get(0);
+        assertThat(mockConnectionProvider.isAutoCommit(), is(false));
+
+        tx.commit();
+
+        assertThat(mockConnectionProvider.isClosed(), is(true));
+        assertThat(mockConnectionProvider.getCommitCount(), is(1));
+    }
+
+    @Test
+    public void test_propagation_required() throws Exception {
+        List<MockConnectionProvider> mockConnectionProviders = provider
+                .getMockConnectionProviders();
+
+        tx.begin(Propagation.REQUIRED);
+        Connection con = tx.getConnection();
+        tx.begin(Propagation.REQUIRED);
+
+        assertThat(tx.getConnection(), is(sameInstance(con)));
+
+        tx.commit();
+
+        MockConnectionProvider mockConnectionProvider = mockConnectionProviders
+                .get(0);
+        assertThat(tx.isActive(), is(true));
+        assertThat(mockConnectionProvider.getCommitCount(), is(0));
+
+        tx.commit();
+
+        assertThat(tx.isActive(), is(false));
+        assertThat(mockConnectionProviders.size(), is(1));
+        assertThat(mockConnectionProvider.getCommitCount(), is(1));
+        assertThat(mockConnectionProvider.isClosed(), is(true));
+    }
+
+    @Test
+    public void test_propagation_required_rollback() throws Exception {
+        tx.begin();
+        tx.begin(Propagation.REQUIRED);
+        tx.rollback();
+
+        assertThat(tx.isRollbackOnly(), is(true));
+
+        try {
+            tx.commit();
+            fail();
+        } catch (SQLException expected) {}
+
+        MockConnectionProvider mockConnectionProvider = provider
+                .getMockConnectionProviders().get(0);
+        assertThat(tx.isActive(), is(false));
+        assertThat(mockConnectionProvider.getCommitCount(), is(0));
+        assertThat(mockConnectionProvider.getRollbackCount(), is(1));
+        assertThat(mockConnectionProvider.isClosed(), is(true));
+    }
+
+    @Test
+    public void test_propagation_nested() throws Exception {
+        tx.begin();
+        tx.begin(Propagation.NESTED);
+        tx.rollback();
+        tx.begin(Propagation.NESTED);
+        tx.commit();
+
+        MockConnectionProvider mockConnectionProvider = provider
+                .getMockConnectionProviders().get(0);
+        assertThat(mockConnectionProvider.getSavepointCount(), is(2));
+        assertThat(mockConnectionProvider.getRollbackToSavepointCount(),
+                is(1));
+        assertThat(mockConnectionProvider.getReleaseSavepointCount(), is(1));
+        assertThat(mockConnectionProvider.getRollbackCount(), is(0));
+
+        tx.commit();
+
+        assertThat(mockConnectionProvider.getCommitCount(), is(1));
+        assertThat(provider.getMockConnectionProviders().size(), is(1));
+    }
+
+    @Test
+    public void test_propagation_requiresNew() throws Exception {
+        List<MockConnectionProvider> mockConnectionProviders = provider
+                .getMockConnectionProviders();
+
+        tx.begin();
+        Connection outer = tx.getConnection();
+        tx.begin(Propagation.REQUIRES_NEW);
+        Connection inner = tx.getConnection();
+
+        assertThat(inner, is(not(sameInstance(outer))));
+        assertThat(mockConnectionProviders.size(), is(2));
+
+        tx.rollback();
+
+        assertThat(mockConnectionProviders.get(1).getRollbackCount(), is(1));
+        assertThat(mockConnectionProviders.get(1).isClosed(), is(true));
+        assertThat(tx.getConnection(), is(sameInstance(outer)));
+
+        tx.commit();
+
+        assertThat(mockConnectionProviders.get(0).getCommitCount(), is(1));
+        assertThat(tx.isActive(), is(false));
+    }
+
+    @Test
+    public void test_wrap() throws Exception {
+        tx.begin();
+        final Connection con = tx.getConnection();
+
+        Future<Boolean> future = executor.submit(tx.wrap(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                assertThat(tx.getConnection(), is(sameInstance(con)));
+                return con.getAutoCommit();
+            }
+        }));
+
+        assertThat(future.get(1, TimeUnit.SECONDS), is(false));
+
+        tx.commit();
+
+        assertThat(provider.getMockConnectionProviders().size(), is(1));
+        assertThat(provider.getMockConnectionProviders().get(0)
+                .getCommitCount(), is(1));
+    }
+
+    @Test
+    public void test_wrap_commit() throws Exception {
+        tx.begin();
+
+        Future<?> future = executor.submit(tx.wrap(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                tx.getConnection();
+                tx.commit();
+                return null;
+            }
+        }));
+        future.get(1, TimeUnit.SECONDS);
+
+        // the task ended the transaction for this thread as well
+        assertThat(tx.isActive(), is(false));
+        assertThat(provider.getMockConnectionProviders().get(0)
+                .getCommitCount(), is(1));
+        tx.begin();
+        tx.rollback();
+        assertThat(tx.isActive(), is(false));
+    }
+
+    @Test
+    public void test_wrap_commit_nested() throws Exception {
+        tx.begin();
+        tx.begin(Propagation.REQUIRES_NEW);
+
+        Future<?> future = executor.submit(tx.wrap(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    tx.rollback();
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }));
+        future.get(1, TimeUnit.SECONDS);
+
+        // the outer transaction is current again
+        assertThat(tx.isActive(), is(true));
+        tx.commit();
+        assertThat(tx.isActive(), is(false));
+        assertThat(provider.getMockConnectionProviders().get(0)
+                .getCommitCount(), is(1));
+        assertThat(provider.getMockConnectionProviders().get(1)
+                .getRollbackCount(), is(1));
+    }
+
+    @Test
+    public void test_wrap_inUse() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+
+        tx.begin();
+        Connection con = tx.getConnection();
+
+        Future<?> future = executor.submit(tx.wrap(new Runnable() {
+
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        try {
+            tx.getConnection();
+            fail();
+        } catch (IllegalStateException expected) {}
+        try {
+            con.getAutoCommit();
+            fail();
+        } catch (SQLException expected) {
+            assertThat(expected.getMessage(),
+                    is("Transaction is in use by another thread"));
+        }
+
+        finish.countDown();
+        future.get(1, TimeUnit.SECONDS);
+
+        assertThat(con.getAutoCommit(), is(false));
+        tx.commit();
+    }
+
     @Test(expected = IllegalStateException.class)
     public void test_begin_begin() throws Exception {
         tx.begin();